@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlList;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+import java.io.Closeable;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.commons.jackrabbit.authorization.AccessControlUtils;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.plugins.index.AsyncIndexUpdate;
+import org.apache.jackrabbit.oak.plugins.index.CompositeIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.IndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.counter.NodeCounterEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexProvider;
+import org.apache.jackrabbit.oak.plugins.index.nodetype.NodeTypeIndexProvider;
+import org.apache.jackrabbit.oak.plugins.index.property.PropertyIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.property.PropertyIndexProvider;
+import org.apache.jackrabbit.oak.plugins.index.reference.ReferenceEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.reference.ReferenceIndexProvider;
+import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeStore;
+import org.apache.jackrabbit.oak.security.internal.SecurityProviderBuilder;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.lifecycle.RepositoryInitializer;
+import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
+import org.apache.jackrabbit.oak.spi.security.ConfigurationParameters;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.whiteboard.DefaultWhiteboard;
+import org.apache.jackrabbit.oak.spi.whiteboard.Whiteboard;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.sling.jcr.oak.server.internal.index.BenchmarkIndexes;
+
+/**
+ * Boots the repository set up by {@link OakSlingRepositoryManager} on a {@link MemoryNodeStore}, passing the
+ * references and default configurations Declarative Services would inject, and fills it with some content to read and
+ * query.
+ */
+class BenchmarkRepository implements Closeable {
+
+    static final String SERVICE_USER = "sling-benchmark-service";
+
+    static final String CONTENT_PATH = "/content";
+
+    static final int NODE_COUNT = 1000;
+
+    static final int RESOURCE_TYPE_COUNT = 10;
+
+    static final List<String> SERVICE_PRINCIPAL_NAMES = Collections.singletonList(SERVICE_USER);
+
+    private final NodeStore nodeStore = new MemoryNodeStore();
+
+    private final OakSlingRepositoryManager manager;
+
+    private final JackrabbitRepository repository;
+
+    private final OakSlingRepository slingRepository;
+
+    private final OakSlingRepository pooledSlingRepository;
+
+    private final ServiceSessionPool sessionPool;
+
+    BenchmarkRepository() throws Exception {
+        this(null);
+    }
+
+    /**
+     * @param executor the executor Oak runs its background work on, like a pool registered by
+     *                 {@link DefaultThreadPoolRegistrar}, or {@code null} for Oak's default executor
+     */
+    BenchmarkRepository(final Executor executor) throws Exception {
+        final Whiteboard whiteboard = new DefaultWhiteboard();
+        final SecurityProvider securityProvider = SecurityProviderBuilder.newBuilder()
+                .with(ConfigurationParameters.EMPTY)
+                .build();
+
+        final LuceneIndexProvider luceneIndexProvider = new LuceneIndexProvider();
+        final LuceneIndexEditorProvider luceneIndexEditorProvider = new LuceneIndexEditorProvider();
+        final List<IndexEditorProvider> indexEditorProviders = Arrays.asList(
+                new PropertyIndexEditorProvider(),
+                new ReferenceEditorProvider(),
+                new NodeCounterEditorProvider(),
+                luceneIndexEditorProvider);
+        for (IndexEditorProvider provider : indexEditorProviders) {
+            whiteboard.register(IndexEditorProvider.class, provider, Collections.emptyMap());
+        }
+        for (QueryIndexProvider provider : Arrays.asList(
+                new PropertyIndexProvider(),
+                new NodeTypeIndexProvider(),
+                new ReferenceIndexProvider(),
+                luceneIndexProvider)) {
+            whiteboard.register(QueryIndexProvider.class, provider, Collections.emptyMap());
+        }
+
+        whiteboard.register(
+                RepositoryInitializer.class, BenchmarkIndexes.luceneIndexInitializer(), Collections.emptyMap());
+
+        final OakSlingRepositoryManagerConfiguration configuration =
+                configuration(OakSlingRepositoryManagerConfiguration.class);
+        manager = new OakSlingRepositoryManager(nodeStore, securityProvider, executor, configuration);
+
+        final Jcr jcr = manager.createJcr(whiteboard, new StartupReport(StatisticsProvider.NOOP))
+                .with((Observer) luceneIndexProvider);
+        repository = new TcclWrappingJackrabbitRepository(manager.createRepository(jcr, whiteboard));
+
+        final SubjectCache subjectCache = new SubjectCache(configuration.oak_session_subjectCache_size());
+        sessionPool = new ServiceSessionPool(
+                configuration.oak_session_pool_maxIdle(),
+                configuration.oak_session_pool_maxIdlePerKey(),
+                configuration.oak_session_pool_idleTimeout(),
+                StatisticsProvider.NOOP);
+        slingRepository = new BenchmarkSlingRepository(subjectCache, null);
+        pooledSlingRepository = new BenchmarkSlingRepository(subjectCache, sessionPool);
+
+        createContent();
+        // the async lane is not scheduled outside of OSGi, so run it once to build the Lucene index
+        new AsyncIndexUpdate("async", nodeStore, CompositeIndexEditorProvider.compose(indexEditorProviders)).run();
+    }
+
+    Repository getRepository() {
+        return repository;
+    }
+
+    Session loginAdministrative() throws Exception {
+        return slingRepository.createAdministrativeSession(null);
+    }
+
+    Session loginService() throws Exception {
+        return slingRepository.createServiceSession(SERVICE_PRINCIPAL_NAMES, null);
+    }
+
+    Session loginPooledService() throws Exception {
+        return pooledSlingRepository.createServiceSession(SERVICE_PRINCIPAL_NAMES, null);
+    }
+
+    @Override
+    public void close() {
+        sessionPool.close();
+        manager.disposeRepository(repository);
+    }
+
+    private void createContent() throws Exception {
+        final Session session = loginAdministrative();
+        try {
+            session.getWorkspace()
+                    .getNamespaceRegistry()
+                    .registerNamespace("sling", "http://sling.apache.org/jcr/sling/1.0");
+            final Node content = session.getRootNode().addNode(CONTENT_PATH.substring(1), JcrConstants.NT_UNSTRUCTURED);
+            for (int i = 0; i < NODE_COUNT; i++) {
+                final Node node = content.addNode("node-" + i, JcrConstants.NT_UNSTRUCTURED);
+                node.setProperty("sling:resourceType", resourceType(i));
+                node.setProperty("text", "lorem ipsum dolor sit amet " + i);
+            }
+
+            final User user = ((JackrabbitSession) session).getUserManager().createSystemUser(SERVICE_USER, null);
+            final AccessControlManager acm = session.getAccessControlManager();
+            final AccessControlList acl = AccessControlUtils.getAccessControlList(acm, CONTENT_PATH);
+            acl.addAccessControlEntry(user.getPrincipal(), new Privilege[] {acm.privilegeFromName(Privilege.JCR_ALL)});
+            acm.setPolicy(CONTENT_PATH, acl);
+            session.save();
+        } finally {
+            session.logout();
+        }
+    }
+
+    static String resourceType(final int i) {
+        return "sling/benchmark/type-" + (i % RESOURCE_TYPE_COUNT);
+    }
+
+    /**
+     * Creates a configuration annotation instance returning the default values, like Declarative Services does for a
+     * component without configuration.
+     */
+    private static <T> T configuration(final Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(
+                type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> method.getDefaultValue()));
+    }
+
+    /**
+     * A Sling repository on the repository created here, as the manager is not started.
+     */
+    private final class BenchmarkSlingRepository extends OakSlingRepository {
+
+        private BenchmarkSlingRepository(final SubjectCache subjectCache, final ServiceSessionPool sessionPool) {
+            super(manager, null, "admin", subjectCache, sessionPool, 0, null, null, null);
+        }
+
+        @Override
+        JackrabbitRepository getJackrabbitRepository() {
+            return repository;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Session;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures logging in and out administrative and service sessions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LoginBenchmark {
+
+    private BenchmarkRepository repository;
+
+    @Setup
+    public void setUp() throws Exception {
+        repository = new BenchmarkRepository();
+    }
+
+    @TearDown
+    public void tearDown() {
+        repository.close();
+    }
+
+    @Benchmark
+    public String administrativeLogin() throws Exception {
+        return logout(repository.loginAdministrative());
+    }
+
+    @Benchmark
+    public String serviceLogin() throws Exception {
+        return logout(repository.loginService());
+    }
+
+    @Benchmark
+    public String pooledServiceLogin() throws Exception {
+        return logout(repository.loginPooledService());
+    }
+
+    /**
+     * Logs in with the thread context class loader set to Oak's class loader, as for nested calls, or to some other
+     * class loader, as for calls from other bundles.
+     */
+    @Benchmark
+    public String loginWithContextClassLoader(final ContextClassLoader contextClassLoader) throws Exception {
+        return logout(repository.getRepository().login(null, null));
+    }
+
+    private static String logout(final Session session) {
+        final String userId = session.getUserID();
+        session.logout();
+        return userId;
+    }
+
+    @State(Scope.Thread)
+    public static class ContextClassLoader {
+
+        @Param({"oak", "other"})
+        public String classLoader;
+
+        private ClassLoader previous;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            previous = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread()
+                    .setContextClassLoader(
+                            "oak".equals(classLoader)
+                                    ? TcclWrappingJackrabbitRepository.OAK_CLASS_LOADER
+                                    : new URLClassLoader(new URL[0], null));
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.oak.Oak;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.apache.sling.jcr.oak.server.internal.BenchmarkRepository.CONTENT_PATH;
+
+/**
+ * Measures the time from saving a change until all of many, possibly blocking, observation listeners received it,
+ * with observation events dispatched on Oak's default executor or on virtual threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ObservationBenchmark {
+
+    @Param({"1000", "5000"})
+    public int listeners;
+
+    /**
+     * Time each listener blocks per event, e.g. for I/O.
+     */
+    @Param({"0", "1"})
+    public int listenerBlockingMillis;
+
+    @Param({"default", "virtual"})
+    public String executor;
+
+    private ExecutorService defaultExecutor;
+
+    private VirtualThreadPool virtualThreadPool;
+
+    private BenchmarkRepository repository;
+
+    private Session session;
+
+    private Node scratch;
+
+    private volatile CountDownLatch delivered;
+
+    private int counter;
+
+    @Setup
+    public void setUp() throws Exception {
+        if ("virtual".equals(executor)) {
+            virtualThreadPool = VirtualThreadPool.create("oak-benchmark");
+            if (virtualThreadPool == null) {
+                throw new IllegalStateException("virtual threads require Java 21 or later");
+            }
+            repository = new BenchmarkRepository(virtualThreadPool);
+        } else {
+            defaultExecutor = Oak.defaultExecutorService();
+            repository = new BenchmarkRepository(defaultExecutor);
+        }
+        session = repository.loginAdministrative();
+        scratch = session.getNode(CONTENT_PATH).addNode("scratch", JcrConstants.NT_UNSTRUCTURED);
+        session.save();
+
+        final ObservationManager observationManager = session.getWorkspace().getObservationManager();
+        for (int i = 0; i < listeners; i++) {
+            observationManager.addEventListener(
+                    new BlockingListener(), Event.NODE_ADDED, scratch.getPath(), true, null, null, false);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.logout();
+        repository.close();
+        if (virtualThreadPool != null) {
+            virtualThreadPool.shutdown();
+        }
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void addNodeAndAwaitListeners() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(listeners);
+        delivered = latch;
+        scratch.addNode("node-" + counter++, JcrConstants.NT_UNSTRUCTURED);
+        session.save();
+        if (!latch.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException(latch.getCount() + " listeners did not receive the event");
+        }
+    }
+
+    private final class BlockingListener implements EventListener {
+
+        @Override
+        public void onEvent(final EventIterator events) {
+            if (listenerBlockingMillis > 0) {
+                try {
+                    Thread.sleep(listenerBlockingMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final CountDownLatch latch = delivered;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.apache.sling.jcr.oak.server.internal.BenchmarkRepository.CONTENT_PATH;
+import static org.apache.sling.jcr.oak.server.internal.BenchmarkRepository.RESOURCE_TYPE_COUNT;
+import static org.apache.sling.jcr.oak.server.internal.BenchmarkRepository.resourceType;
+
+/**
+ * Measures SQL2 and XPath queries served by the built-in {@code slingResourceType} property index and by the Lucene
+ * full-text index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class QueryBenchmark {
+
+    private BenchmarkRepository repository;
+
+    private Session session;
+
+    private QueryManager queryManager;
+
+    private int counter;
+
+    @Setup
+    public void setUp() throws Exception {
+        repository = new BenchmarkRepository();
+        session = repository.loginService();
+        queryManager = session.getWorkspace().getQueryManager();
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.logout();
+        repository.close();
+    }
+
+    @Benchmark
+    public long sql2PropertyIndex() throws Exception {
+        return execute(
+                "SELECT * FROM [nt:base] WHERE [sling:resourceType] = '" + nextResourceType() + "'", Query.JCR_SQL2);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public long xpathPropertyIndex() throws Exception {
+        return execute(
+                "/jcr:root" + CONTENT_PATH + "//*[@sling:resourceType = '" + nextResourceType() + "']", Query.XPATH);
+    }
+
+    @Benchmark
+    public long sql2Lucene() throws Exception {
+        return execute("SELECT * FROM [nt:base] WHERE CONTAINS(*, '" + nextTerm() + "')", Query.JCR_SQL2);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public long xpathLucene() throws Exception {
+        return execute("/jcr:root" + CONTENT_PATH + "//*[jcr:contains(., '" + nextTerm() + "')]", Query.XPATH);
+    }
+
+    private long execute(final String statement, final String language) throws Exception {
+        final NodeIterator nodes = queryManager.createQuery(statement, language).execute().getNodes();
+        long count = 0;
+        while (nodes.hasNext()) {
+            nodes.nextNode();
+            count++;
+        }
+        return count;
+    }
+
+    private String nextResourceType() {
+        return resourceType(counter++ % RESOURCE_TYPE_COUNT);
+    }
+
+    /**
+     * Returns a term matching a single node, see {@link BenchmarkRepository}.
+     */
+    private String nextTerm() {
+        return String.valueOf(counter++ % BenchmarkRepository.NODE_COUNT);
+    }
+}
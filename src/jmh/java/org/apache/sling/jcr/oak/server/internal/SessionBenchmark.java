@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.apache.sling.jcr.oak.server.internal.BenchmarkRepository.CONTENT_PATH;
+import static org.apache.sling.jcr.oak.server.internal.BenchmarkRepository.NODE_COUNT;
+
+/**
+ * Measures reading and writing nodes with a service session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SessionBenchmark {
+
+    private BenchmarkRepository repository;
+
+    private Session session;
+
+    private Node scratch;
+
+    private int counter;
+
+    @Setup
+    public void setUp() throws Exception {
+        repository = new BenchmarkRepository();
+        session = repository.loginService();
+    }
+
+    @Setup(Level.Iteration)
+    public void createScratchNode() throws Exception {
+        scratch = session.getNode(CONTENT_PATH).addNode("scratch", JcrConstants.NT_UNSTRUCTURED);
+        session.save();
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeScratchNode() throws Exception {
+        session.refresh(false);
+        scratch.remove();
+        session.save();
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.logout();
+        repository.close();
+    }
+
+    @Benchmark
+    public String readNode() throws Exception {
+        final Node node = session.getNode(CONTENT_PATH + "/node-" + (counter++ % NODE_COUNT));
+        return node.getProperty("text").getString();
+    }
+
+    /**
+     * Adds a node without saving it, i.e. the cost of growing the transient space.
+     */
+    @Benchmark
+    public Node addNode() throws Exception {
+        final Node node = scratch.addNode("node-" + counter++, JcrConstants.NT_UNSTRUCTURED);
+        node.setProperty("text", "lorem ipsum");
+        return node;
+    }
+
+    @Benchmark
+    public Node addNodeAndSave() throws Exception {
+        final Node node = scratch.addNode("node-" + counter++, JcrConstants.NT_UNSTRUCTURED);
+        node.setProperty("text", "lorem ipsum");
+        session.save();
+        return node;
+    }
+
+    @Benchmark
+    public void setPropertyAndSave() throws Exception {
+        scratch.setProperty("counter", counter++);
+        session.save();
+    }
+}
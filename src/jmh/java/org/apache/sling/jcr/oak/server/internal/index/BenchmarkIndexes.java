@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal.index;
+
+import java.lang.reflect.Proxy;
+
+import org.apache.jackrabbit.oak.spi.lifecycle.RepositoryInitializer;
+
+/**
+ * Creates the index initializers of this package for the benchmarks, which run outside of OSGi.
+ */
+public final class BenchmarkIndexes {
+
+    private BenchmarkIndexes() {}
+
+    /**
+     * Returns the Lucene index initializer with the default configuration, like Declarative Services activates it
+     * for a configuration without properties.
+     */
+    public static RepositoryInitializer luceneIndexInitializer() {
+        final LuceneIndexRepositoryInitializerConfiguration configuration =
+                (LuceneIndexRepositoryInitializerConfiguration) Proxy.newProxyInstance(
+                        LuceneIndexRepositoryInitializerConfiguration.class.getClassLoader(),
+                        new Class<?>[] {LuceneIndexRepositoryInitializerConfiguration.class},
+                        (proxy, method, args) -> method.getDefaultValue());
+        return new LuceneIndexRepositoryInitializer(configuration);
+    }
+}
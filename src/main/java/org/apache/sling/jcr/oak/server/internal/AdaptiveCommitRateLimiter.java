@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jackrabbit.api.jmx.EventListenerMBean;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.plugins.observation.CommitRateLimiter;
+import org.apache.jackrabbit.oak.spi.commit.BackgroundObserverMBean;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.whiteboard.Tracker;
+import org.apache.jackrabbit.oak.spi.whiteboard.Whiteboard;
+import org.apache.jackrabbit.oak.stats.CounterStats;
+import org.apache.jackrabbit.oak.stats.MeterStats;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+
+/**
+ * A {@link CommitRateLimiter} delaying commits gradually as observation falls behind, instead of blocking them once
+ * an observation queue is full.
+ *
+ * <p>The throttle level is sampled at most once per second from the fill level of the observation queues, the backlog
+ * of the event listeners and the commit latency. Each signal starts to contribute at its threshold; the queue fill
+ * level reaches the full throttle level when a queue is full, the others at twice their threshold. Commits are
+ * delayed by the throttle level times the maximum delay, except for commits of exempt users and commits made while
+ * delivering events.</p>
+ */
+class AdaptiveCommitRateLimiter extends CommitRateLimiter implements Observer {
+
+    static final String THROTTLE_LEVEL = "OAK_COMMIT_RATE_LIMITER_THROTTLE_LEVEL";
+
+    static final String DELAYED_COMMITS = "OAK_COMMIT_RATE_LIMITER_DELAYED_COMMITS";
+
+    private static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Weight of a new commit latency measurement in the moving average.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final double queueFillThreshold;
+
+    private final long backlogThreshold;
+
+    private final long latencyThreshold;
+
+    private final long maxDelay;
+
+    private final Set<String> exemptUsers;
+
+    private final CounterStats throttleLevel;
+
+    private final MeterStats delayedCommits;
+
+    private final ThreadLocal<Long> commitStart = new ThreadLocal<>();
+
+    private final AtomicLong nextSample = new AtomicLong(System.nanoTime());
+
+    private Tracker<BackgroundObserverMBean> observers;
+
+    private Tracker<EventListenerMBean> listeners;
+
+    /**
+     * The moving average of the commit latency in ms, as the bits of a double updated concurrently by the committing
+     * threads.
+     */
+    private final AtomicLong latency = new AtomicLong(Double.doubleToLongBits(0));
+
+    private volatile long delay;
+
+    private long level;
+
+    /**
+     * @param queueFillThreshold fill level of an observation queue (0..1) from which commits are delayed
+     * @param backlogThreshold   backlog of an event listener in ms from which commits are delayed, 0 to disable
+     * @param latencyThreshold   average commit latency in ms from which commits are delayed, 0 to disable
+     * @param maxDelay           delay in ms at the full throttle level
+     * @param exemptUsers        ids of the users whose commits are never delayed
+     */
+    AdaptiveCommitRateLimiter(
+            final double queueFillThreshold,
+            final long backlogThreshold,
+            final long latencyThreshold,
+            final long maxDelay,
+            final String[] exemptUsers,
+            final StatisticsProvider statisticsProvider) {
+        this.queueFillThreshold = queueFillThreshold;
+        this.backlogThreshold = backlogThreshold;
+        this.latencyThreshold = latencyThreshold;
+        this.maxDelay = maxDelay;
+        this.exemptUsers = new HashSet<>(Arrays.asList(exemptUsers));
+        this.throttleLevel = statisticsProvider.getCounterStats(THROTTLE_LEVEL, StatsOptions.METRICS_ONLY);
+        this.delayedCommits = statisticsProvider.getMeter(DELAYED_COMMITS, StatsOptions.METRICS_ONLY);
+    }
+
+    void start(final Whiteboard whiteboard) {
+        observers = whiteboard.track(BackgroundObserverMBean.class);
+        listeners = whiteboard.track(EventListenerMBean.class);
+    }
+
+    void stop() {
+        observers.stop();
+        listeners.stop();
+        setLevel(0);
+    }
+
+    /**
+     * Oak signals a full observation queue, which is taken into account through the queue fill level instead.
+     */
+    @Override
+    public void blockCommits() {}
+
+    @Override
+    public void unblockCommits() {}
+
+    /**
+     * Oak's delay for nearly full observation queues is replaced by the throttle level.
+     */
+    @Override
+    public void setDelay(final long delay) {}
+
+    @Override
+    public NodeState processCommit(final NodeState before, final NodeState after, final CommitInfo info)
+            throws CommitFailedException {
+        sampleIfDue();
+        final long delay = this.delay;
+        if (delay > 0 && isThreadBlocking() && !exemptUsers.contains(info.getUserId())) {
+            delayedCommits.mark();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CommitFailedException(CommitFailedException.OAK, 2, "Interrupted while waiting to commit", e);
+            }
+        }
+        commitStart.set(System.nanoTime());
+        return after;
+    }
+
+    /**
+     * Local commits are dispatched to observers in the committing thread. The commit latency is measured from passing
+     * this limiter, the last commit hook, to the dispatch, i.e. it is the time taken to persist the commit.
+     */
+    @Override
+    public void contentChanged(final NodeState root, final CommitInfo info) {
+        final Long start = commitStart.get();
+        if (start != null && !info.isExternal()) {
+            commitStart.remove();
+            final double millis = (System.nanoTime() - start) / 1e6;
+            updateLatency(millis);
+        }
+    }
+
+    private void updateLatency(final double millis) {
+        while (true) {
+            final long bits = latency.get();
+            final double current = Double.longBitsToDouble(bits);
+            final double updated = current + LATENCY_WEIGHT * (millis - current);
+            if (latency.compareAndSet(bits, Double.doubleToLongBits(updated))) {
+                return;
+            }
+        }
+    }
+
+    private void sampleIfDue() {
+        final long now = System.nanoTime();
+        final long next = nextSample.get();
+        if (now - next >= 0 && nextSample.compareAndSet(next, now + SAMPLE_INTERVAL)) {
+            sample();
+        }
+    }
+
+    private void sample() {
+        double pressure = 0;
+        if (queueFillThreshold > 0) {
+            for (BackgroundObserverMBean observer : observers.getServices()) {
+                final int maxQueueSize = observer.getMaxQueueSize();
+                if (maxQueueSize > 0) {
+                    final double fill = (double) observer.getQueueSize() / maxQueueSize;
+                    pressure = Math.max(pressure, pressure(fill, queueFillThreshold, 1));
+                }
+            }
+        }
+        if (backlogThreshold > 0) {
+            for (EventListenerMBean listener : listeners.getServices()) {
+                pressure = Math.max(
+                        pressure, pressure(listener.getQueueBacklogMillis(), backlogThreshold, 2 * backlogThreshold));
+            }
+        }
+        if (latencyThreshold > 0) {
+            final double averageLatency = Double.longBitsToDouble(latency.get());
+            pressure = Math.max(pressure, pressure(averageLatency, latencyThreshold, 2 * latencyThreshold));
+        }
+        delay = Math.round(pressure * maxDelay);
+        setLevel(Math.round(pressure * 100));
+    }
+
+    /**
+     * Reports the throttle level in percent.
+     */
+    private synchronized void setLevel(final long level) {
+        throttleLevel.inc(level - this.level);
+        this.level = level;
+    }
+
+    private static double pressure(final double value, final double threshold, final double limit) {
+        if (value <= threshold) {
+            return 0;
+        }
+        return Math.min(1, (value - threshold) / (limit - threshold));
+    }
+}
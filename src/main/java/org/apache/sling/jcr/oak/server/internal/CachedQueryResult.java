@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.jackrabbit.commons.iterator.NodeIteratorAdapter;
+import org.apache.jackrabbit.commons.iterator.RowIteratorAdapter;
+
+/**
+ * A query result served by the {@link QueryResultCache}: the cached rows, or the rows read while trying to cache the
+ * result followed by the remaining ones.
+ */
+class CachedQueryResult implements QueryResult {
+
+    private final String[] columnNames;
+
+    private final String[] selectorNames;
+
+    private final List<Row> rows;
+
+    private final RowIterator remaining;
+
+    private final Session session;
+
+    private boolean iterated;
+
+    /**
+     * @param remaining the rows following the given ones, {@code null} if there are none
+     */
+    CachedQueryResult(
+            final String[] columnNames,
+            final String[] selectorNames,
+            final List<Row> rows,
+            final RowIterator remaining,
+            final Session session) {
+        this.columnNames = columnNames;
+        this.selectorNames = selectorNames;
+        this.rows = rows;
+        this.remaining = remaining;
+        this.session = session;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    @Override
+    public String[] getSelectorNames() {
+        return selectorNames.clone();
+    }
+
+    @Override
+    public RowIterator getRows() throws RepositoryException {
+        return new RowIteratorAdapter(rows());
+    }
+
+    @Override
+    public NodeIterator getNodes() throws RepositoryException {
+        if (selectorNames.length > 1) {
+            throw new RepositoryException(
+                    "Query contains more than one selector: " + String.join(", ", selectorNames));
+        }
+        final Iterator<Row> rows = rows();
+        final Iterator<Node> nodes = new Iterator<Node>() {
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Node next() {
+                try {
+                    return rows.next().getNode();
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        return remaining == null ? new NodeIteratorAdapter(nodes, this.rows.size()) : new NodeIteratorAdapter(nodes);
+    }
+
+    /**
+     * The rows, the remaining ones can be iterated once only.
+     */
+    private synchronized Iterator<Row> rows() throws RepositoryException {
+        if (remaining == null) {
+            final Iterator<Row> cached = rows.iterator();
+            return new Iterator<Row>() {
+
+                @Override
+                public boolean hasNext() {
+                    return cached.hasNext();
+                }
+
+                @Override
+                public Row next() {
+                    return ((CachedRow) cached.next()).bind(session);
+                }
+            };
+        }
+        if (iterated) {
+            throw new RepositoryException("This query result has already been iterated.");
+        }
+        iterated = true;
+        final Iterator<Row> read = rows.iterator();
+        return new Iterator<Row>() {
+
+            @Override
+            public boolean hasNext() {
+                return read.hasNext() || remaining.hasNext();
+            }
+
+            @Override
+            public Row next() {
+                return read.hasNext() ? read.next() : remaining.nextRow();
+            }
+        };
+    }
+
+    /**
+     * A row detached from the session it was read with. The rows handed out are bound to the session of the result
+     * to resolve their nodes.
+     */
+    static final class CachedRow implements Row {
+
+        private final String[] columnNames;
+
+        private final String[] selectorNames;
+
+        private final Value[] values;
+
+        private final String[] paths;
+
+        private final double[] scores;
+
+        private final Session session;
+
+        CachedRow(
+                final String[] columnNames,
+                final String[] selectorNames,
+                final Value[] values,
+                final String[] paths,
+                final double[] scores) {
+            this(columnNames, selectorNames, values, paths, scores, null);
+        }
+
+        private CachedRow(
+                final String[] columnNames,
+                final String[] selectorNames,
+                final Value[] values,
+                final String[] paths,
+                final double[] scores,
+                final Session session) {
+            this.columnNames = columnNames;
+            this.selectorNames = selectorNames;
+            this.values = values;
+            this.paths = paths;
+            this.scores = scores;
+            this.session = session;
+        }
+
+        private CachedRow bind(final Session session) {
+            return new CachedRow(columnNames, selectorNames, values, paths, scores, session);
+        }
+
+        @Override
+        public Value[] getValues() {
+            return values.clone();
+        }
+
+        @Override
+        public Value getValue(final String columnName) throws ItemNotFoundException {
+            for (int i = 0; i < columnNames.length; i++) {
+                if (columnNames[i].equals(columnName)) {
+                    return values[i];
+                }
+            }
+            throw new ItemNotFoundException("Column not found: " + columnName);
+        }
+
+        @Override
+        public Node getNode() throws RepositoryException {
+            return getNode(getSelectorIndex());
+        }
+
+        @Override
+        public Node getNode(final String selectorName) throws RepositoryException {
+            return getNode(getSelectorIndex(selectorName));
+        }
+
+        @Override
+        public String getPath() throws RepositoryException {
+            return paths[getSelectorIndex()];
+        }
+
+        @Override
+        public String getPath(final String selectorName) throws RepositoryException {
+            return paths[getSelectorIndex(selectorName)];
+        }
+
+        @Override
+        public double getScore() throws RepositoryException {
+            return scores[getSelectorIndex()];
+        }
+
+        @Override
+        public double getScore(final String selectorName) throws RepositoryException {
+            return scores[getSelectorIndex(selectorName)];
+        }
+
+        private Node getNode(final int selectorIndex) throws RepositoryException {
+            return paths[selectorIndex] != null ? session.getNode(paths[selectorIndex]) : null;
+        }
+
+        private int getSelectorIndex() throws RepositoryException {
+            if (selectorNames.length != 1) {
+                throw new RepositoryException(
+                        "Query contains more than one selector: " + String.join(", ", selectorNames));
+            }
+            return 0;
+        }
+
+        private int getSelectorIndex(final String selectorName) throws RepositoryException {
+            for (int i = 0; i < selectorNames.length; i++) {
+                if (selectorNames[i].equals(selectorName)) {
+                    return i;
+                }
+            }
+            throw new RepositoryException("Selector not found: " + selectorName);
+        }
+    }
+}
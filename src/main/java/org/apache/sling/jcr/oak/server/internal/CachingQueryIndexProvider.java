@@ -0,0 +1,381 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.spi.query.Cursor;
+import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.query.Filter.PropertyRestriction;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.AdvanceFulltextQueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.AdvancedQueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.FulltextQueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.IndexPlan;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.NativeQueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.NodeAggregator;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.OrderEntry;
+import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.apache.jackrabbit.oak.stats.MeterStats;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+
+/**
+ * A {@link QueryIndexProvider} caching the cost estimates and plans of the indexes of another provider, shared by all
+ * sessions.
+ *
+ * <p>Estimates and plans are cached per index and filter, i.e. per normalized statement, selector, bind values and
+ * sort order. A cached plan is handed out as a copy bound to the filter of the query at hand. All entries are dropped
+ * when the index definitions below {@code /oak:index} change; changes to the index content, which is hidden, keep
+ * them. As estimates also depend on the amount of indexed content, entries expire after a maximum age.</p>
+ *
+ * <p>Index definitions nested in the content, e.g. {@code /content/oak:index/foo}, are not tracked, as finding them
+ * would take a traversal of the content changed since the last query. Changes to them reach the cached queries only
+ * once their entries expire.</p>
+ *
+ * <p>The query engine looks for capabilities by the interfaces of an index, e.g. it only evaluates {@code native()}
+ * constraints with a {@link NativeQueryIndex}, so each wrapper implements exactly the query index interfaces of the
+ * index it wraps. Full-text and native indexes not supporting plans are handed out unwrapped, i.e. neither cached
+ * nor bound to the deadline.</p>
+ *
+ * <p>The cursors of the wrapped indexes stop at the deadline of the query read by the current thread, see
+ * {@link QueryDeadline}. With a maximum of 0 entries, nothing is cached and only the cursors are bound.</p>
+ */
+class CachingQueryIndexProvider implements QueryIndexProvider {
+
+    static final String HITS = "OAK_QUERY_PLAN_CACHE_HITS";
+
+    static final String MISSES = "OAK_QUERY_PLAN_CACHE_MISSES";
+
+    private final QueryIndexProvider provider;
+
+    private final int maxEntries;
+
+    private final long maxAge;
+
+    private final MeterStats hits;
+
+    private final MeterStats misses;
+
+    private NodeState definitions;
+
+    private Map<String, PlanEntry> entries;
+
+    /**
+     * @param maxEntries maximum number of cached estimates and plans, the least recently used are evicted, 0 to
+     *                   disable caching
+     * @param maxAge     time in ms after which cached estimates and plans expire
+     */
+    CachingQueryIndexProvider(
+            final QueryIndexProvider provider,
+            final int maxEntries,
+            final long maxAge,
+            final StatisticsProvider statisticsProvider) {
+        this.provider = provider;
+        this.maxEntries = maxEntries;
+        this.maxAge = TimeUnit.MILLISECONDS.toNanos(maxAge);
+        this.hits = statisticsProvider.getMeter(HITS, StatsOptions.METRICS_ONLY);
+        this.misses = statisticsProvider.getMeter(MISSES, StatsOptions.METRICS_ONLY);
+        this.entries = newEntries();
+    }
+
+    @Override
+    public List<? extends QueryIndex> getQueryIndexes(final NodeState nodeState) {
+        final Map<String, PlanEntry> entries = getEntries(nodeState.getChildNode(INDEX_DEFINITIONS_NAME));
+        final List<? extends QueryIndex> indexes = provider.getQueryIndexes(nodeState);
+        final List<QueryIndex> cachingIndexes = new ArrayList<>(indexes.size());
+        for (QueryIndex index : indexes) {
+            cachingIndexes.add(wrap(index, entries));
+        }
+        return cachingIndexes;
+    }
+
+    /**
+     * Returns the entries for the given index definitions, dropping the cached ones if the definitions changed.
+     */
+    private synchronized Map<String, PlanEntry> getEntries(final NodeState definitions) {
+        if (this.definitions == null) {
+            this.definitions = definitions;
+        } else if (!definitions.equals(this.definitions)) {
+            if (!definitions.compareAgainstBaseState(this.definitions, new DefinitionsDiff())) {
+                entries = newEntries();
+            }
+            this.definitions = definitions;
+        }
+        return entries;
+    }
+
+    private Map<String, PlanEntry> newEntries() {
+        return new LinkedHashMap<String, PlanEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, PlanEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private QueryIndex wrap(final QueryIndex index, final Map<String, PlanEntry> entries) {
+        if (index instanceof AdvanceFulltextQueryIndex) {
+            return new CachingFulltextIndex((AdvanceFulltextQueryIndex) index, entries);
+        } else if (index instanceof FulltextQueryIndex) {
+            return index;
+        } else if (index instanceof AdvancedQueryIndex && index instanceof NativeQueryIndex) {
+            return new CachingNativeIndex(index, entries);
+        } else if (index instanceof AdvancedQueryIndex) {
+            return new CachingAdvancedIndex(index, entries);
+        } else if (index instanceof NativeQueryIndex) {
+            return index;
+        }
+        return new CachingIndex(index, entries);
+    }
+
+    /**
+     * Identifies the planning of a query by the index and the filter and sort order of one of its selectors.
+     */
+    private static String getKey(
+            final QueryIndex index, final Filter filter, final List<OrderEntry> sortOrder) {
+        final StringBuilder key = new StringBuilder()
+                .append(index.getClass().getName())
+                .append('/')
+                .append(index.getIndexName())
+                .append('\n')
+                .append(filter.getQueryStatement())
+                .append('\n')
+                .append(filter.matchesAllTypes() ? "*" : filter.getNodeType())
+                .append('\n')
+                .append(filter.getPathPlan())
+                .append('\n')
+                .append(filter.getFullTextConstraint());
+        for (PropertyRestriction restriction : filter.getPropertyRestrictions()) {
+            key.append('\n').append(restriction.propertyType).append(':').append(restriction);
+        }
+        if (sortOrder != null) {
+            key.append('\n').append(sortOrder);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Aborts on changes to the index definitions, ignoring the hidden index content.
+     */
+    private static final class DefinitionsDiff extends DefaultNodeStateDiff {
+
+        @Override
+        public boolean propertyAdded(final PropertyState after) {
+            return false;
+        }
+
+        @Override
+        public boolean propertyChanged(
+                final PropertyState before,
+                final PropertyState after) {
+            return false;
+        }
+
+        @Override
+        public boolean propertyDeleted(final PropertyState before) {
+            return false;
+        }
+
+        @Override
+        public boolean childNodeAdded(final String name, final NodeState after) {
+            return NodeStateUtils.isHidden(name);
+        }
+
+        @Override
+        public boolean childNodeChanged(final String name, final NodeState before, final NodeState after) {
+            return NodeStateUtils.isHidden(name) || after.compareAgainstBaseState(before, this);
+        }
+
+        @Override
+        public boolean childNodeDeleted(final String name, final NodeState before) {
+            return NodeStateUtils.isHidden(name);
+        }
+    }
+
+    /**
+     * A cost estimate or the plans of an index for a filter.
+     */
+    private static final class PlanEntry {
+
+        private final long created = System.nanoTime();
+
+        private final double cost;
+
+        private final List<IndexPlan> plans;
+
+        private PlanEntry(final double cost, final List<IndexPlan> plans) {
+            this.cost = cost;
+            this.plans = plans;
+        }
+    }
+
+    private class CachingIndex implements QueryIndex {
+
+        final QueryIndex index;
+
+        private final Map<String, PlanEntry> entries;
+
+        CachingIndex(final QueryIndex index, final Map<String, PlanEntry> entries) {
+            this.index = index;
+            this.entries = entries;
+        }
+
+        @Override
+        public double getCost(final Filter filter, final NodeState rootState) {
+            final String key = getKey(index, filter, null);
+            final PlanEntry cached = get(key);
+            if (cached != null) {
+                return cached.cost;
+            }
+            final double cost = index.getCost(filter, rootState);
+            put(key, new PlanEntry(cost, null));
+            return cost;
+        }
+
+        PlanEntry get(final String key) {
+            if (maxEntries == 0) {
+                return null;
+            }
+            final PlanEntry entry;
+            synchronized (entries) {
+                entry = entries.get(key);
+            }
+            if (entry != null && System.nanoTime() - entry.created < maxAge) {
+                hits.mark();
+                return entry;
+            }
+            misses.mark();
+            return null;
+        }
+
+        void put(final String key, final PlanEntry entry) {
+            if (maxEntries == 0) {
+                return;
+            }
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+        }
+
+        @Override
+        public Cursor query(final Filter filter, final NodeState rootState) {
+            return QueryDeadline.bound(index.query(filter, rootState));
+        }
+
+        // only pure delegate methods below
+
+        @Override
+        public double getMinimumCost() {
+            return index.getMinimumCost();
+        }
+
+        @Override
+        public String getPlan(final Filter filter, final NodeState rootState) {
+            return index.getPlan(filter, rootState);
+        }
+
+        @Override
+        public String getIndexName() {
+            return index.getIndexName();
+        }
+
+        @Override
+        public String getIndexName(final Filter filter, final NodeState rootState) {
+            return index.getIndexName(filter, rootState);
+        }
+    }
+
+    private class CachingAdvancedIndex extends CachingIndex implements AdvancedQueryIndex {
+
+        CachingAdvancedIndex(final QueryIndex index, final Map<String, PlanEntry> entries) {
+            super(index, entries);
+        }
+
+        /**
+         * Returns copies of the cached plans bound to the given filter, as the query engine sets the filter of the
+         * plan it selects.
+         */
+        @Override
+        public List<IndexPlan> getPlans(
+                final Filter filter, final List<OrderEntry> sortOrder, final NodeState rootState) {
+            final String key = getKey(index, filter, sortOrder);
+            final PlanEntry cached = get(key);
+            if (cached != null) {
+                return copy(cached.plans, filter);
+            }
+            final List<IndexPlan> plans = ((AdvancedQueryIndex) index).getPlans(filter, sortOrder, rootState);
+            // the cached copies do not keep the query alive
+            put(key, new PlanEntry(0, copy(plans, null)));
+            return plans;
+        }
+
+        private List<IndexPlan> copy(final List<IndexPlan> plans, final Filter filter) {
+            final List<IndexPlan> copies = new ArrayList<>(plans.size());
+            for (IndexPlan plan : plans) {
+                final IndexPlan copy = plan.copy();
+                copy.setFilter(filter);
+                copies.add(copy);
+            }
+            return copies;
+        }
+
+        @Override
+        public Cursor query(final IndexPlan plan, final NodeState rootState) {
+            return QueryDeadline.bound(((AdvancedQueryIndex) index).query(plan, rootState));
+        }
+
+        // only pure delegate methods below
+
+        @Override
+        public String getPlanDescription(final IndexPlan plan, final NodeState root) {
+            return ((AdvancedQueryIndex) index).getPlanDescription(plan, root);
+        }
+    }
+
+    private final class CachingNativeIndex extends CachingAdvancedIndex implements NativeQueryIndex {
+
+        CachingNativeIndex(final QueryIndex index, final Map<String, PlanEntry> entries) {
+            super(index, entries);
+        }
+    }
+
+    private final class CachingFulltextIndex extends CachingAdvancedIndex
+            implements AdvanceFulltextQueryIndex, NativeQueryIndex {
+
+        CachingFulltextIndex(final AdvanceFulltextQueryIndex index, final Map<String, PlanEntry> entries) {
+            super(index, entries);
+        }
+
+        @Override
+        public NodeAggregator getNodeAggregator() {
+            return ((AdvanceFulltextQueryIndex) index).getNodeAggregator();
+        }
+    }
+}
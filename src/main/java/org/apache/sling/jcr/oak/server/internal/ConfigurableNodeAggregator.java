@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.plugins.nodetype.TypePredicate;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.NodeAggregator;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_SYSTEM;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.spi.nodetype.NodeTypeConstants.JCR_NODE_TYPES;
+
+/**
+ * A {@link NodeAggregator} aggregating the nodes below nodes of a type into the latter for fulltext queries.
+ *
+ * <p>The rules are given as {@code nodeType;include[,include...][;depth=N]}. The includes are paths relative to the
+ * aggregating node, whose names may be {@code *} to match any name, e.g. {@code nt:file;jcr:content}. The depth
+ * additionally aggregates the descendants of the included nodes down to the given number of levels below the
+ * aggregating node, e.g. {@code sling:Folder;*;depth=3}. The node type matches its subtypes and mixins as well. Like
+ * with the {@code SimpleNodeAggregator} of Oak, an aggregating node is aggregated in turn if a rule includes it.</p>
+ */
+class ConfigurableNodeAggregator implements NodeAggregator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfigurableNodeAggregator.class);
+
+    private static final String ANY_NAME = "*";
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    private final int maxDepth;
+
+    private volatile TypePredicates typePredicates;
+
+    ConfigurableNodeAggregator(final String[] rules) {
+        int maxDepth = 0;
+        for (String rule : rules) {
+            try {
+                final Rule parsed = new Rule(rule);
+                this.rules.add(parsed);
+                maxDepth = Math.max(maxDepth, parsed.depth);
+            } catch (IllegalArgumentException e) {
+                logger.warn("ignoring invalid aggregation rule '{}': {}", rule, e.getMessage());
+            }
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    @Override
+    public Iterator<String> getParents(final NodeState root, final String path) {
+        final Set<String> parents = new LinkedHashSet<>();
+        collectParents(root, path, getTypePredicates(root), parents);
+        return parents.iterator();
+    }
+
+    /**
+     * Returns the predicates of the rules, built again only when the node types change.
+     */
+    private TypePredicate[] getTypePredicates(final NodeState root) {
+        final NodeState types = root.getChildNode(JCR_SYSTEM).getChildNode(JCR_NODE_TYPES);
+        TypePredicates typePredicates = this.typePredicates;
+        if (typePredicates == null || !types.equals(typePredicates.types)) {
+            final TypePredicate[] predicates = new TypePredicate[rules.size()];
+            for (int i = 0; i < predicates.length; i++) {
+                predicates[i] = new TypePredicate(root, rules.get(i).nodeType);
+                // initializes the predicate, which is not thread-safe, before it is shared
+                predicates[i].test(EMPTY_NODE);
+            }
+            typePredicates = new TypePredicates(types, predicates);
+            this.typePredicates = typePredicates;
+        }
+        return typePredicates.predicates;
+    }
+
+    private void collectParents(
+            final NodeState root, final String path, final TypePredicate[] predicates, final Set<String> parents) {
+        final List<String> names = new ArrayList<>();
+        for (String name : PathUtils.elements(path)) {
+            names.add(name);
+        }
+        for (int depth = 1; depth <= Math.min(maxDepth, names.size()); depth++) {
+            final List<String> relativePath = names.subList(names.size() - depth, names.size());
+            NodeState parent = null;
+            for (int i = 0; i < rules.size(); i++) {
+                if (!rules.get(i).includes(relativePath)) {
+                    continue;
+                }
+                if (parent == null) {
+                    parent = root;
+                    for (String name : names.subList(0, names.size() - depth)) {
+                        parent = parent.getChildNode(name);
+                    }
+                }
+                if (predicates[i].test(parent)) {
+                    final String parentPath = PathUtils.getAncestorPath(path, depth);
+                    if (parents.add(parentPath)) {
+                        collectParents(root, parentPath, predicates, parents);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private static final class TypePredicates {
+
+        private final NodeState types;
+
+        private final TypePredicate[] predicates;
+
+        private TypePredicates(final NodeState types, final TypePredicate[] predicates) {
+            this.types = types;
+            this.predicates = predicates;
+        }
+    }
+
+    private static final class Rule {
+
+        private final String nodeType;
+
+        private final List<String[]> includes = new ArrayList<>();
+
+        private final int depth;
+
+        private Rule(final String definition) {
+            final String[] parts = definition.split(";");
+            if (parts.length < 2 || parts[0].trim().isEmpty() || parts[1].trim().isEmpty()) {
+                throw new IllegalArgumentException("expected 'nodeType;include[,include...][;depth=N]'");
+            }
+            this.nodeType = parts[0].trim();
+            int includeDepth = 0;
+            for (String include : parts[1].split(",")) {
+                if (!include.trim().isEmpty()) {
+                    final String[] names = include.trim().split("/");
+                    for (String name : names) {
+                        if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+                            throw new IllegalArgumentException("invalid include '" + include.trim() + "'");
+                        }
+                    }
+                    includes.add(names);
+                    includeDepth = Math.max(includeDepth, names.length);
+                }
+            }
+            int depth = includeDepth;
+            for (int i = 2; i < parts.length; i++) {
+                final String[] option = parts[i].split("=", 2);
+                if (option.length != 2 || !"depth".equals(option[0].trim())) {
+                    throw new IllegalArgumentException("expected 'depth=N' instead of '" + parts[i] + "'");
+                }
+                depth = Integer.parseInt(option[1].trim());
+                if (depth < 1) {
+                    throw new IllegalArgumentException("the depth must be positive");
+                }
+            }
+            this.depth = Math.max(depth, includeDepth);
+        }
+
+        /**
+         * Whether the node at the relative path below a node of this type is aggregated: the path matches an
+         * include, or is below one and within the depth.
+         */
+        private boolean includes(final List<String> relativePath) {
+            for (String[] include : includes) {
+                if (relativePath.size() == include.length
+                        || (relativePath.size() > include.length && relativePath.size() <= depth)) {
+                    if (matches(include, relativePath)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean matches(final String[] include, final List<String> relativePath) {
+            for (int i = 0; i < include.length; i++) {
+                if (!ANY_NAME.equals(include[i]) && !include[i].equals(relativePath.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -20,8 +20,12 @@ package org.apache.sling.jcr.oak.server.internal;
 
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.concurrent.Executor;
 
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.sling.commons.threads.ModifiableThreadPoolConfig;
 import org.apache.sling.commons.threads.ThreadPool;
+import org.apache.sling.commons.threads.ThreadPoolConfig.ThreadPoolPolicy;
 import org.apache.sling.commons.threads.ThreadPoolManager;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
@@ -29,25 +33,77 @@ import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Component(immediate = true)
+@Designate(ocd = DefaultThreadPoolRegistrarConfiguration.class)
 public class DefaultThreadPoolRegistrar {
 
+    /**
+     * Service property marking the thread pool as the one Oak should run its background work on, set unless the Sling
+     * default thread pool is registered.
+     */
+    static final String OAK_EXECUTOR = "oak.executor";
+
+    private final Logger logger = LoggerFactory.getLogger(DefaultThreadPoolRegistrar.class);
+
     @Reference
     private ThreadPoolManager threadPoolManager;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile StatisticsProvider statisticsProvider;
+
     private ThreadPool threadPool;
 
-    private ServiceRegistration<ThreadPool> serviceRegistration;
+    private VirtualThreadPool virtualThreadPool;
+
+    private ServiceRegistration<?> serviceRegistration;
 
     public DefaultThreadPoolRegistrar() {}
 
     @Activate
-    private void activate(final BundleContext bundleContext) {
-        threadPool = threadPoolManager.get(ThreadPoolManager.DEFAULT_THREADPOOL_NAME);
+    private void activate(
+            final BundleContext bundleContext, final DefaultThreadPoolRegistrarConfiguration configuration) {
+        ThreadPool pool = null;
+        if (configuration.virtualThreads()) {
+            virtualThreadPool = VirtualThreadPool.create(configuration.name());
+            if (virtualThreadPool == null) {
+                logger.warn("virtual threads require Java 21 or later, using the Sling default thread pool");
+            }
+            pool = virtualThreadPool;
+        } else if (configuration.dedicated()) {
+            final ModifiableThreadPoolConfig config = new ModifiableThreadPoolConfig();
+            config.setMinPoolSize(configuration.minPoolSize());
+            config.setMaxPoolSize(configuration.maxPoolSize());
+            config.setQueueSize(configuration.queueSize());
+            config.setKeepAliveTime(configuration.keepAliveTime());
+            config.setPriority(configuration.priority());
+            config.setBlockPolicy(ThreadPoolPolicy.RUN);
+            config.setShutdownGraceful(true);
+            threadPool = threadPoolManager.create(config, configuration.name());
+            pool = threadPool;
+        }
+
         final Dictionary<String, String> properties = new Hashtable<>();
-        properties.put("name", threadPool.getName());
-        serviceRegistration = bundleContext.registerService(ThreadPool.class, threadPool, properties);
+        final String[] services;
+        if (pool != null) {
+            properties.put("name", configuration.name());
+            properties.put(OAK_EXECUTOR, "true");
+            services = new String[] {ThreadPool.class.getName(), Executor.class.getName()};
+        } else {
+            threadPool = threadPoolManager.get(ThreadPoolManager.DEFAULT_THREADPOOL_NAME);
+            pool = threadPool;
+            properties.put("name", threadPool.getName());
+            services = new String[] {ThreadPool.class.getName()};
+        }
+        final StatisticsProvider provider = statisticsProvider;
+        final ThreadPool instrumented =
+                new InstrumentedThreadPool(pool, provider != null ? provider : StatisticsProvider.NOOP);
+        serviceRegistration = bundleContext.registerService(services, instrumented, properties);
     }
 
     @Deactivate
@@ -56,7 +112,13 @@ public class DefaultThreadPoolRegistrar {
             serviceRegistration.unregister();
             serviceRegistration = null;
         }
-        threadPoolManager.release(threadPool);
-        threadPool = null;
+        if (virtualThreadPool != null) {
+            virtualThreadPool.shutdown();
+            virtualThreadPool = null;
+        }
+        if (threadPool != null) {
+            threadPoolManager.release(threadPool);
+            threadPool = null;
+        }
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import org.apache.sling.commons.threads.ThreadPoolConfig.ThreadPriority;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(
+        name = "Apache Sling JCR Oak Repository – Thread Pool",
+        description = "Configuration of the thread pool provided to Oak for its background work")
+@interface DefaultThreadPoolRegistrarConfiguration {
+
+    @AttributeDefinition(
+            name = "Dedicated Thread Pool",
+            description = "Whether Oak gets a thread pool of its own instead of the Sling default thread pool. "
+                    + "The dedicated thread pool is also registered as Executor, which Oak uses to dispatch "
+                    + "observation events.")
+    boolean dedicated() default false;
+
+    @AttributeDefinition(
+            name = "Virtual Threads",
+            description = "Whether Oak gets a thread pool running each task in a new virtual thread instead. This "
+                    + "requires Java 21 or later, on older Java versions the Sling default thread pool is used. "
+                    + "Takes precedence over the dedicated thread pool, whose sizing does not apply.")
+    boolean virtualThreads() default false;
+
+    @AttributeDefinition(name = "Name", description = "The name of the dedicated or virtual thread pool.")
+    String name() default "oak";
+
+    @AttributeDefinition(name = "Min Pool Size", description = "The minimum number of threads of the dedicated pool.")
+    int minPoolSize() default 5;
+
+    @AttributeDefinition(name = "Max Pool Size", description = "The maximum number of threads of the dedicated pool.")
+    int maxPoolSize() default 5;
+
+    @AttributeDefinition(
+            name = "Queue Size",
+            description = "The maximum number of tasks queued by the dedicated pool, -1 for an unbounded queue. "
+                    + "Once the queue is full, tasks run in the thread submitting them.")
+    int queueSize() default -1;
+
+    @AttributeDefinition(
+            name = "Keep Alive Time",
+            description = "Time in milliseconds after which idle threads above the minimum pool size are stopped.")
+    long keepAliveTime() default 60000;
+
+    @AttributeDefinition(name = "Priority", description = "The priority of the threads of the dedicated pool.")
+    ThreadPriority priority() default ThreadPriority.NORM;
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.filter.PathFilter;
+import org.apache.jackrabbit.oak.spi.lifecycle.RepositoryInitializer;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Collections.singleton;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.DECLARING_NODE_TYPES;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ENTRY_COUNT_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.KEY_COUNT_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.UNIQUE_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexUtils.createIndexDefinition;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * Creates the property indexes Sling queries rely on.
+ *
+ * <p>The indexes are given as {@code name;property[;option=value...]} with the options</p>
+ * <ul>
+ *     <li>{@code async}: the async indexing lane updating the index, synchronous if missing</li>
+ *     <li>{@code unique}: whether the property values are unique, {@code false} if missing</li>
+ *     <li>{@code declaringNodeTypes}: comma separated node types to restrict the index to</li>
+ *     <li>{@code includedPaths}, {@code excludedPaths}: comma separated paths to restrict the index to, e.g.
+ *     {@code event.job.topic;event.job.topic;includedPaths=/var/eventing}. Queries outside of the included paths
+ *     do not use the index.</li>
+ *     <li>{@code entryCount}, {@code keyCount}: cost hints for the query engine</li>
+ * </ul>
+ * <p>Existing indexes are left as they are, a warning is logged if their definition differs from the configured one.
+ * Changing the configuration of an existing index requires updating its definition manually and reindexing it.
+ * The existing indexes are checked on every start, so this initializer is never skipped as unchanged.</p>
+ */
+class ExtraSlingContent implements RepositoryInitializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExtraSlingContent.class);
+
+    /**
+     * Properties set by the options, compared with existing indexes also if not configured.
+     */
+    private static final List<String> OPTIONS = Arrays.asList(
+            ASYNC_PROPERTY_NAME,
+            UNIQUE_PROPERTY_NAME,
+            DECLARING_NODE_TYPES,
+            PathFilter.PROP_INCLUDED_PATHS,
+            PathFilter.PROP_EXCLUDED_PATHS,
+            ENTRY_COUNT_PROPERTY_NAME,
+            KEY_COUNT_PROPERTY_NAME);
+
+    private final List<PropertyIndex> indexes = new ArrayList<>();
+
+    ExtraSlingContent(final String[] indexes) {
+        for (String index : indexes) {
+            try {
+                this.indexes.add(new PropertyIndex(index));
+            } catch (IllegalArgumentException e) {
+                logger.warn("ignoring invalid property index '{}': {}", index, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void initialize(NodeBuilder root) {
+        if (root.hasChildNode(INDEX_DEFINITIONS_NAME)) {
+            NodeBuilder index = root.child(INDEX_DEFINITIONS_NAME);
+            for (PropertyIndex propertyIndex : indexes) {
+                if (!index.hasChildNode(propertyIndex.name)) {
+                    propertyIndex.create(index);
+                } else if (!propertyIndex.matches(index.getChildNode(propertyIndex.name).getNodeState())) {
+                    logger.warn(
+                            "property index {} differs from its configuration '{}', update its definition and "
+                                    + "reindex it to apply the configuration",
+                            propertyIndex.name,
+                            propertyIndex);
+                }
+            }
+        }
+    }
+
+    private static final class PropertyIndex {
+
+        private final String definition;
+
+        private final String name;
+
+        private final String propertyName;
+
+        private String async;
+
+        private boolean unique;
+
+        private Set<String> declaringNodeTypes;
+
+        private Set<String> includedPaths;
+
+        private Set<String> excludedPaths;
+
+        private long entryCount = -1;
+
+        private long keyCount = -1;
+
+        private PropertyIndex(final String definition) {
+            this.definition = definition;
+            final String[] parts = definition.split(";");
+            if (parts.length < 2 || parts[0].trim().isEmpty() || parts[1].trim().isEmpty()) {
+                throw new IllegalArgumentException("expected 'name;property[;option=value...]'");
+            }
+            this.name = parts[0].trim();
+            this.propertyName = parts[1].trim();
+            for (int i = 2; i < parts.length; i++) {
+                final String[] option = parts[i].split("=", 2);
+                if (option.length != 2) {
+                    throw new IllegalArgumentException("expected 'option=value' instead of '" + parts[i] + "'");
+                }
+                setOption(option[0].trim(), option[1].trim());
+            }
+        }
+
+        private void setOption(final String option, final String value) {
+            switch (option) {
+                case "async":
+                    async = value;
+                    break;
+                case "unique":
+                    unique = Boolean.parseBoolean(value);
+                    break;
+                case "declaringNodeTypes":
+                    declaringNodeTypes = split(value);
+                    break;
+                case "includedPaths":
+                    includedPaths = split(value);
+                    break;
+                case "excludedPaths":
+                    excludedPaths = split(value);
+                    break;
+                case "entryCount":
+                    entryCount = Long.parseLong(value);
+                    break;
+                case "keyCount":
+                    keyCount = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option '" + option + "'");
+            }
+        }
+
+        private void create(final NodeBuilder index) {
+            final NodeBuilder definition =
+                    createIndexDefinition(index, name, true, unique, singleton(propertyName), declaringNodeTypes);
+            if (async != null) {
+                definition.setProperty(ASYNC_PROPERTY_NAME, async);
+            }
+            if (includedPaths != null) {
+                definition.setProperty(PathFilter.PROP_INCLUDED_PATHS, includedPaths, Type.STRINGS);
+            }
+            if (excludedPaths != null) {
+                definition.setProperty(PathFilter.PROP_EXCLUDED_PATHS, excludedPaths, Type.STRINGS);
+            }
+            if (entryCount >= 0) {
+                definition.setProperty(ENTRY_COUNT_PROPERTY_NAME, entryCount);
+            }
+            if (keyCount >= 0) {
+                definition.setProperty(KEY_COUNT_PROPERTY_NAME, keyCount);
+            }
+        }
+
+        /**
+         * Returns whether the existing definition has the configured properties, ignoring those maintained by Oak.
+         */
+        private boolean matches(final NodeState existing) {
+            final NodeBuilder parent = EMPTY_NODE.builder();
+            create(parent);
+            final NodeState definition = parent.getChildNode(name).getNodeState();
+            for (PropertyState property : definition.getProperties()) {
+                if (!REINDEX_PROPERTY_NAME.equals(property.getName())
+                        && !property.equals(existing.getProperty(property.getName()))) {
+                    return false;
+                }
+            }
+            for (String option : OPTIONS) {
+                if (!definition.hasProperty(option) && existing.hasProperty(option)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static Set<String> split(final String value) {
+            final Set<String> values = new LinkedHashSet<>();
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return definition;
+        }
+    }
+}
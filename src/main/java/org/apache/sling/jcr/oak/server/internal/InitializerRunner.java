@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.apache.jackrabbit.oak.InitialContent;
+import org.apache.jackrabbit.oak.OakVersion;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.lifecycle.RepositoryInitializer;
+import org.apache.jackrabbit.oak.spi.state.ApplyDiff;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs repository initializers in order, optionally skipping those which already ran with the same fingerprint.
+ *
+ * <p>The fingerprints of the initializers are recorded in the hidden {@value #FINGERPRINTS_NODE} node below the root.
+ * Only Oak's {@link InitialContent}, which depends on the Oak version, and initializer services registered with a
+ * {@value #FINGERPRINT} property are skipped, all others run on every start. The property has to capture everything,
+ * e.g. the configuration, the content written by the initializer depends on. Initializers which check the existing
+ * content on every start, e.g. for drifted index definitions, must not carry it. A skipped initializer does not
+ * restore content it created which was removed since.</p>
+ *
+ * <p>Consecutive initializers whose classes are listed as independent run concurrently, each on a branch of the
+ * content created so far. They must neither read nor write content of the other initializers, as only overlapping
+ * changes can be detected. The changes of the branches are applied in the order of the initializers, and fail the
+ * initialization if two branches changed the same items, as the initializers are not run a second time.</p>
+ */
+class InitializerRunner implements RepositoryInitializer {
+
+    static final String FINGERPRINTS_NODE = ":slingInitializers";
+
+    static final String FINGERPRINTS = "fingerprints";
+
+    /**
+     * The service property opting a repository initializer service in to being skipped while it does not change.
+     */
+    static final String FINGERPRINT = "oak.initializer.fingerprint";
+
+    private final Logger logger = LoggerFactory.getLogger(InitializerRunner.class);
+
+    private final List<RepositoryInitializer> initializers;
+
+    private final boolean skipUnchanged;
+
+    private final Map<RepositoryInitializer, String> fingerprints;
+
+    private final Set<String> independent;
+
+    private final Executor executor;
+
+    private final StartupReport startupReport;
+
+    /**
+     * @param fingerprints the {@value #FINGERPRINT} properties of the initializer services carrying one
+     * @param independent the class names of the initializers which may run concurrently
+     * @param executor the executor to run the independent initializers concurrently
+     */
+    InitializerRunner(
+            final List<RepositoryInitializer> initializers,
+            final boolean skipUnchanged,
+            final Map<RepositoryInitializer, String> fingerprints,
+            final Set<String> independent,
+            final Executor executor,
+            final StartupReport startupReport) {
+        this.initializers = new ArrayList<>(initializers);
+        this.skipUnchanged = skipUnchanged;
+        this.fingerprints = new IdentityHashMap<>(fingerprints);
+        this.independent = new HashSet<>(independent);
+        this.executor = executor;
+        this.startupReport = startupReport;
+    }
+
+    @Override
+    public void initialize(final NodeBuilder root) {
+        if (!skipUnchanged) {
+            run(root, initializers);
+            return;
+        }
+
+        final Set<String> applied = new HashSet<>();
+        final PropertyState property = root.getChildNode(FINGERPRINTS_NODE).getProperty(FINGERPRINTS);
+        if (property != null) {
+            property.getValue(Type.STRINGS).forEach(applied::add);
+        }
+
+        final List<String> fingerprints = new ArrayList<>();
+        final List<RepositoryInitializer> pending = new ArrayList<>();
+        for (RepositoryInitializer initializer : initializers) {
+            final String fingerprint = fingerprint(initializer);
+            if (fingerprint != null) {
+                fingerprints.add(fingerprint);
+                if (applied.contains(fingerprint)) {
+                    logger.debug("skipping unchanged repository initializer {}", initializer);
+                    continue;
+                }
+            }
+            pending.add(initializer);
+        }
+        run(root, pending);
+
+        if (!applied.equals(new HashSet<>(fingerprints))) {
+            root.child(FINGERPRINTS_NODE).setProperty(FINGERPRINTS, fingerprints, Type.STRINGS);
+        }
+    }
+
+    private void run(final NodeBuilder root, final List<RepositoryInitializer> initializers) {
+        int i = 0;
+        while (i < initializers.size()) {
+            int end = i;
+            while (end < initializers.size() && independent.contains(initializers.get(end).getClass().getName())) {
+                end++;
+            }
+            if (end - i > 1) {
+                runConcurrently(root, initializers.subList(i, end));
+                i = end;
+            } else {
+                startupReport.timed(initializers.get(i++)).initialize(root);
+            }
+        }
+    }
+
+    /**
+     * Runs the initializers on branches and applies their changes.
+     *
+     * @throws IllegalStateException if two initializers changed the same items
+     */
+    private void runConcurrently(final NodeBuilder root, final List<RepositoryInitializer> initializers) {
+        final NodeState base = root.getNodeState();
+        final List<CompletableFuture<NodeState>> branches = new ArrayList<>();
+        for (RepositoryInitializer initializer : initializers) {
+            branches.add(CompletableFuture.supplyAsync(
+                    () -> {
+                        final NodeBuilder branch = base.builder();
+                        startupReport.timed(initializer).initialize(branch);
+                        return branch.getNodeState();
+                    },
+                    executor));
+        }
+
+        final List<NodeState> results = new ArrayList<>();
+        final NavigableSet<String> changed = new TreeSet<>();
+        for (int i = 0; i < branches.size(); i++) {
+            final NodeState result;
+            try {
+                result = branches.get(i).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            final ChangeCollector changes = new ChangeCollector("/");
+            result.compareAgainstBaseState(base, changes);
+            for (String path : changes.paths) {
+                if (overlaps(changed, path)) {
+                    throw new IllegalStateException("Repository initializer " + initializers.get(i)
+                            + " conflicts with a preceding one at " + path + ", it is not independent");
+                }
+            }
+            changed.addAll(changes.paths);
+            results.add(result);
+        }
+
+        for (NodeState result : results) {
+            result.compareAgainstBaseState(base, new ApplyDiff(root));
+        }
+    }
+
+    /**
+     * Returns whether the path, one of its ancestors or one of its descendants is among the changed paths.
+     */
+    private static boolean overlaps(final NavigableSet<String> changed, final String path) {
+        for (String ancestor = path; ; ancestor = PathUtils.getParentPath(ancestor)) {
+            if (changed.contains(ancestor)) {
+                return true;
+            }
+            if (PathUtils.denotesRoot(ancestor)) {
+                break;
+            }
+        }
+        final String descendant = changed.higher(path + "/");
+        return descendant != null && descendant.startsWith(path + "/");
+    }
+
+    /**
+     * Returns a hash of the initializer class and its fingerprint, or {@code null} if the initializer cannot be
+     * skipped.
+     */
+    private String fingerprint(final RepositoryInitializer initializer) {
+        final String fingerprint;
+        if (fingerprints.containsKey(initializer)) {
+            fingerprint = fingerprints.get(initializer);
+        } else if (initializer.getClass() == InitialContent.class) {
+            fingerprint = OakVersion.getVersion();
+        } else {
+            return null;
+        }
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final String value = initializer.getClass().getName() + "\n" + fingerprint;
+            return new BigInteger(1, digest.digest(value.getBytes(StandardCharsets.UTF_8))).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Collects the paths of the changed properties and of the added and removed nodes.
+     */
+    private static final class ChangeCollector extends DefaultNodeStateDiff {
+
+        private final String path;
+
+        private final List<String> paths;
+
+        private ChangeCollector(final String path) {
+            this(path, new ArrayList<>());
+        }
+
+        private ChangeCollector(final String path, final List<String> paths) {
+            this.path = path;
+            this.paths = paths;
+        }
+
+        @Override
+        public boolean propertyAdded(final PropertyState after) {
+            paths.add(PathUtils.concat(path, after.getName()));
+            return true;
+        }
+
+        @Override
+        public boolean propertyChanged(final PropertyState before, final PropertyState after) {
+            paths.add(PathUtils.concat(path, after.getName()));
+            return true;
+        }
+
+        @Override
+        public boolean propertyDeleted(final PropertyState before) {
+            paths.add(PathUtils.concat(path, before.getName()));
+            return true;
+        }
+
+        @Override
+        public boolean childNodeAdded(final String name, final NodeState after) {
+            paths.add(PathUtils.concat(path, name));
+            return true;
+        }
+
+        @Override
+        public boolean childNodeChanged(final String name, final NodeState before, final NodeState after) {
+            return after.compareAgainstBaseState(before, new ChangeCollector(PathUtils.concat(path, name), paths));
+        }
+
+        @Override
+        public boolean childNodeDeleted(final String name, final NodeState before) {
+            paths.add(PathUtils.concat(path, name));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.Credentials;
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.LoginException;
+import javax.jcr.ReferentialIntegrityException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.lock.LockException;
+import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.nodetype.NoSuchNodeTypeException;
+import javax.jcr.version.VersionException;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.JackrabbitWorkspace;
+
+/**
+ * A session recording the queries run through its workspace in the {@link QueryStatistics}, answering them from
+ * the {@link QueryResultCache} and guarding them with the {@link QueryGuard}, any of which may be {@code null}.
+ * Logging out finishes the queries whose results have not been iterated to the end.
+ *
+ * <p>For the cache, it tracks the revision the session sees at least, taken before it is logged in, refreshed or
+ * saved through this wrapper. Refreshes by Oak itself or through the session of an item are not noticed, so the
+ * revision may lag behind, which only causes cache misses.</p>
+ */
+class InstrumentedJackrabbitSession extends TcclWrappingJackrabbitSession {
+
+    private final QueryStatistics statistics;
+
+    private final QueryResultCache cache;
+
+    private final QueryGuard guard;
+
+    private final String bundle;
+
+    private final String principals;
+
+    private volatile long revision;
+
+    private InstrumentedWorkspace workspace;
+
+    /**
+     * @param principals identifies the principals of the session for the cache, {@code null} to identify them by the
+     *                   user id
+     * @param revision   the revision of the cache taken before the session was logged in, see
+     *                   {@link QueryResultCache#getRevision()}
+     */
+    InstrumentedJackrabbitSession(
+            final JackrabbitSession session,
+            final QueryStatistics statistics,
+            final QueryResultCache cache,
+            final QueryGuard guard,
+            final String bundle,
+            final String principals,
+            final long revision) {
+        super(session);
+        this.statistics = statistics;
+        this.cache = cache;
+        this.guard = guard;
+        this.bundle = bundle;
+        this.principals = principals != null ? principals : "user:" + session.getUserID();
+        this.revision = revision;
+    }
+
+    long getRevision() {
+        return revision;
+    }
+
+    @Override
+    public synchronized Workspace getWorkspace() {
+        if (workspace == null) {
+            workspace = new InstrumentedWorkspace(
+                    (JackrabbitWorkspace) getWrapped().getWorkspace(),
+                    this,
+                    statistics,
+                    cache,
+                    guard,
+                    bundle,
+                    principals);
+        }
+        return workspace;
+    }
+
+    @Override
+    public Session impersonate(final Credentials credentials) throws LoginException, RepositoryException {
+        final long revision = currentRevision();
+        return new InstrumentedJackrabbitSession(
+                (JackrabbitSession) super.impersonate(credentials), statistics, cache, guard, bundle, null, revision);
+    }
+
+    @Override
+    public void save()
+            throws AccessDeniedException, ItemExistsException, ReferentialIntegrityException,
+                    ConstraintViolationException, InvalidItemStateException, VersionException, LockException,
+                    NoSuchNodeTypeException, RepositoryException {
+        final long revision = currentRevision();
+        super.save();
+        this.revision = revision;
+    }
+
+    @Override
+    public void refresh(final boolean keepChanges) throws RepositoryException {
+        final long revision = currentRevision();
+        super.refresh(keepChanges);
+        this.revision = revision;
+    }
+
+    private long currentRevision() {
+        return cache != null ? cache.getRevision() : 0;
+    }
+
+    @Override
+    public void logout() {
+        final InstrumentedWorkspace workspace;
+        synchronized (this) {
+            workspace = this.workspace;
+        }
+        if (workspace != null) {
+            workspace.finishQueries();
+        }
+        super.logout();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.ItemExistsException;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.Value;
+import javax.jcr.lock.LockException;
+import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+import javax.jcr.version.VersionException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Query} whose executions are recorded in the {@link QueryStatistics}, answered from the
+ * {@link QueryResultCache} and guarded by the {@link QueryGuard}, if enabled. The timeout of the query can be set
+ * through the {@value #TIMEOUT_BINDING} binding.
+ */
+class InstrumentedQuery implements Query {
+
+    /**
+     * Reserved name of the binding shortening the timeout of the query, in ms, 0 or less for the default. The colon
+     * makes sure it never collides with a bind variable of the statement.
+     */
+    static final String TIMEOUT_BINDING = "sling:queryTimeout";
+
+    private final Query wrapped;
+
+    private final QueryManager queryManager;
+
+    private final InstrumentedWorkspace workspace;
+
+    private final Map<String, Value> bindings = new LinkedHashMap<>();
+
+    private long limit = -1;
+
+    private long offset = -1;
+
+    private long timeout;
+
+    InstrumentedQuery(final Query wrapped, final QueryManager queryManager, final InstrumentedWorkspace workspace) {
+        this.wrapped = wrapped;
+        this.queryManager = queryManager;
+        this.workspace = workspace;
+    }
+
+    @Override
+    public QueryResult execute() throws InvalidQueryException, RepositoryException {
+        final QueryGuard guard = workspace.getGuard();
+        final QueryDeadline deadline = guard != null ? guard.deadline(timeout) : null;
+        final QueryDeadline previous = deadline != null ? deadline.enter() : null;
+        final long started = System.nanoTime();
+        final QueryResult result;
+        try {
+            result = execute(guard);
+        } catch (RepositoryException | RuntimeException e) {
+            if (guard != null && QueryDeadline.isTimeout(e)) {
+                guard.timedOut();
+            }
+            throw e;
+        } finally {
+            if (deadline != null) {
+                QueryDeadline.exit(previous);
+            }
+        }
+        if (workspace.getStatistics() == null && guard == null) {
+            return result;
+        }
+        return new InstrumentedQueryResult(result, this, workspace, deadline, System.nanoTime() - started);
+    }
+
+    private QueryResult execute(final QueryGuard guard) throws RepositoryException {
+        final QueryResultCache cache = workspace.getCache();
+        try {
+            return cache != null
+                    ? cache.execute(this, workspace.getSession(), workspace.getRevision(), workspace.getPrincipals())
+                    : wrapped.execute();
+        } catch (InvalidQueryException e) {
+            if (guard == null) {
+                throw e;
+            }
+            return guard.rejected(this, e);
+        }
+    }
+
+    Query getWrapped() {
+        return wrapped;
+    }
+
+    Map<String, Value> getBindings() {
+        return bindings;
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Explains this query with the same bindings, limit and offset.
+     */
+    String explain() {
+        try {
+            final RowIterator rows = prepare("explain " + getStatement()).execute().getRows();
+            if (rows.hasNext()) {
+                final Row row = rows.nextRow();
+                return row.getValue("plan").getString();
+            }
+            return "no plan";
+        } catch (RepositoryException | RuntimeException e) {
+            return "plan not available: " + e;
+        }
+    }
+
+    /**
+     * Creates a query for the given statement, in the language and with the bindings, limit and offset of this
+     * query.
+     */
+    Query prepare(final String statement) throws RepositoryException {
+        final Query query = queryManager.createQuery(statement, getLanguage());
+        for (Map.Entry<String, Value> binding : bindings.entrySet()) {
+            query.bindValue(binding.getKey(), binding.getValue());
+        }
+        if (limit >= 0) {
+            query.setLimit(limit);
+        }
+        if (offset >= 0) {
+            query.setOffset(offset);
+        }
+        return query;
+    }
+
+    @Override
+    public void setLimit(final long limit) {
+        wrapped.setLimit(limit);
+        this.limit = limit;
+    }
+
+    @Override
+    public void setOffset(final long offset) {
+        wrapped.setOffset(offset);
+        this.offset = offset;
+    }
+
+    @Override
+    public void bindValue(final String varName, final Value value)
+            throws IllegalArgumentException, RepositoryException {
+        if (TIMEOUT_BINDING.equals(varName)) {
+            timeout = value.getLong();
+            return;
+        }
+        wrapped.bindValue(varName, value);
+        bindings.put(varName, value);
+    }
+
+    // only pure delegate methods below
+
+    @Override
+    public String getStatement() {
+        return wrapped.getStatement();
+    }
+
+    @Override
+    public String getLanguage() {
+        return wrapped.getLanguage();
+    }
+
+    @Override
+    public String getStoredQueryPath() throws ItemNotFoundException, RepositoryException {
+        return wrapped.getStoredQueryPath();
+    }
+
+    @Override
+    public Node storeAsNode(final String absPath)
+            throws ItemExistsException, PathNotFoundException, VersionException, ConstraintViolationException,
+                    LockException, UnsupportedRepositoryOperationException, RepositoryException {
+        return wrapped.storeAsNode(absPath);
+    }
+
+    @Override
+    public String[] getBindVariableNames() throws RepositoryException {
+        return wrapped.getBindVariableNames();
+    }
+}
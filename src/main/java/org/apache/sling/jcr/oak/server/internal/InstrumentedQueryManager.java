@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.qom.QueryObjectModelFactory;
+
+/**
+ * A {@link QueryManager} whose queries are recorded in the {@link QueryStatistics}. Queries built with the query
+ * object model are not recorded.
+ */
+class InstrumentedQueryManager implements QueryManager {
+
+    private final QueryManager wrapped;
+
+    private final InstrumentedWorkspace workspace;
+
+    InstrumentedQueryManager(final QueryManager wrapped, final InstrumentedWorkspace workspace) {
+        this.wrapped = wrapped;
+        this.workspace = workspace;
+    }
+
+    @Override
+    public Query createQuery(final String statement, final String language)
+            throws InvalidQueryException, RepositoryException {
+        return new InstrumentedQuery(wrapped.createQuery(statement, language), wrapped, workspace);
+    }
+
+    @Override
+    public Query getQuery(final Node node) throws InvalidQueryException, RepositoryException {
+        return new InstrumentedQuery(wrapped.getQuery(node), wrapped, workspace);
+    }
+
+    @Override
+    public QueryObjectModelFactory getQOMFactory() {
+        return wrapped.getQOMFactory();
+    }
+
+    @Override
+    public String[] getSupportedQueryLanguages() throws RepositoryException {
+        return wrapped.getSupportedQueryLanguages();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RangeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import java.util.function.Supplier;
+
+/**
+ * The result of an {@link InstrumentedQuery}, accounting the time spent in iterating it and the number of rows
+ * returned. The query is recorded once an iterator reaches the end of the result, or when the session logs out.
+ * Results Oak stops reading for exceeding its limits are counted by the {@link QueryGuard}.
+ *
+ * <p>The deadline of the query, if any, is checked before each row and is made current while Oak reads the result,
+ * so that the index cursors stop once it passed.</p>
+ */
+class InstrumentedQueryResult implements QueryResult {
+
+    private final QueryResult wrapped;
+
+    private final InstrumentedQuery query;
+
+    private final InstrumentedWorkspace workspace;
+
+    private final String statement;
+
+    private final String language;
+
+    private final QueryDeadline deadline;
+
+    private long nanos;
+
+    private long rows;
+
+    private boolean finished;
+
+    private boolean failed;
+
+    InstrumentedQueryResult(
+            final QueryResult wrapped,
+            final InstrumentedQuery query,
+            final InstrumentedWorkspace workspace,
+            final QueryDeadline deadline,
+            final long executeNanos) {
+        this.wrapped = wrapped;
+        this.query = query;
+        this.workspace = workspace;
+        this.statement = query.getStatement();
+        this.language = query.getLanguage();
+        this.deadline = deadline;
+        this.nanos = executeNanos;
+        workspace.started(this);
+    }
+
+    @Override
+    public NodeIterator getNodes() throws RepositoryException {
+        final long started = System.nanoTime();
+        final QueryDeadline previous = enter();
+        try {
+            return new InstrumentedNodeIterator(wrapped.getNodes());
+        } catch (RuntimeException e) {
+            throw failed(e);
+        } finally {
+            exit(previous);
+            read(started, 0);
+        }
+    }
+
+    @Override
+    public RowIterator getRows() throws RepositoryException {
+        final long started = System.nanoTime();
+        final QueryDeadline previous = enter();
+        try {
+            return new InstrumentedRowIterator(wrapped.getRows());
+        } catch (RuntimeException e) {
+            throw failed(e);
+        } finally {
+            exit(previous);
+            read(started, 0);
+        }
+    }
+
+    @Override
+    public String[] getColumnNames() throws RepositoryException {
+        return wrapped.getColumnNames();
+    }
+
+    @Override
+    public String[] getSelectorNames() throws RepositoryException {
+        return wrapped.getSelectorNames();
+    }
+
+    private synchronized void read(final long started, final long rows) {
+        this.nanos += System.nanoTime() - started;
+        this.rows += rows;
+    }
+
+    private QueryDeadline enter() {
+        return deadline != null ? deadline.enter() : null;
+    }
+
+    private void exit(final QueryDeadline previous) {
+        if (deadline != null) {
+            QueryDeadline.exit(previous);
+        }
+    }
+
+    private void check() {
+        if (deadline != null) {
+            deadline.check();
+        }
+    }
+
+    /**
+     * Counts the result once as rejected, if Oak stopped reading it for exceeding a limit, or as timed out.
+     */
+    private RuntimeException failed(final RuntimeException e) {
+        final QueryGuard guard = workspace.getGuard();
+        final boolean limitExceeded = QueryGuard.isLimitExceeded(e);
+        final boolean timedOut = QueryDeadline.isTimeout(e);
+        if (guard != null && (limitExceeded || timedOut)) {
+            synchronized (this) {
+                if (failed) {
+                    return e;
+                }
+                failed = true;
+            }
+            if (timedOut) {
+                guard.timedOut();
+            } else {
+                guard.limitExceeded();
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Records the query, unless it has been recorded already.
+     */
+    void finish() {
+        final long nanos;
+        final long rows;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            nanos = this.nanos;
+            rows = this.rows;
+        }
+        workspace.finished(this);
+        final QueryStatistics statistics = workspace.getStatistics();
+        if (statistics != null) {
+            statistics.record(workspace.getBundle(), language, statement, nanos, rows, query::explain);
+        }
+    }
+
+    private class InstrumentedRangeIterator implements RangeIterator {
+
+        private final RangeIterator wrapped;
+
+        private InstrumentedRangeIterator(final RangeIterator wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public boolean hasNext() {
+            final long started = System.nanoTime();
+            final QueryDeadline previous = enter();
+            final boolean hasNext;
+            try {
+                check();
+                hasNext = wrapped.hasNext();
+            } catch (RuntimeException e) {
+                throw failed(e);
+            } finally {
+                exit(previous);
+                read(started, 0);
+            }
+            if (!hasNext) {
+                finish();
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Object next() {
+            return next(wrapped::next);
+        }
+
+        <T> T next(final Supplier<T> next) {
+            final long started = System.nanoTime();
+            final QueryDeadline previous = enter();
+            try {
+                check();
+                return next.get();
+            } catch (RuntimeException e) {
+                throw failed(e);
+            } finally {
+                exit(previous);
+                read(started, 1);
+            }
+        }
+
+        @Override
+        public void skip(final long skipNum) {
+            final long started = System.nanoTime();
+            final QueryDeadline previous = enter();
+            try {
+                check();
+                wrapped.skip(skipNum);
+            } catch (RuntimeException e) {
+                throw failed(e);
+            } finally {
+                exit(previous);
+                read(started, skipNum);
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return wrapped.getSize();
+        }
+
+        @Override
+        public long getPosition() {
+            return wrapped.getPosition();
+        }
+
+        @Override
+        public void remove() {
+            wrapped.remove();
+        }
+    }
+
+    private final class InstrumentedNodeIterator extends InstrumentedRangeIterator implements NodeIterator {
+
+        private final NodeIterator wrapped;
+
+        private InstrumentedNodeIterator(final NodeIterator wrapped) {
+            super(wrapped);
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public Node nextNode() {
+            return next(wrapped::nextNode);
+        }
+    }
+
+    private final class InstrumentedRowIterator extends InstrumentedRangeIterator implements RowIterator {
+
+        private final RowIterator wrapped;
+
+        private InstrumentedRowIterator(final RowIterator wrapped) {
+            super(wrapped);
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public Row nextRow() {
+            return next(wrapped::nextRow);
+        }
+    }
+}
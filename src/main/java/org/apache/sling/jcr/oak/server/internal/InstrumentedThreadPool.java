@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.stats.CounterStats;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.apache.jackrabbit.oak.stats.TimerStats;
+import org.apache.sling.commons.threads.ThreadPool;
+import org.apache.sling.commons.threads.ThreadPoolConfig;
+
+/**
+ * A {@link ThreadPool} recording the number of queued tasks, the time tasks wait in the queue and the time they take
+ * to run.
+ */
+class InstrumentedThreadPool implements ThreadPool, Executor {
+
+    static final String QUEUE_DEPTH = "OAK_THREAD_POOL_QUEUE_DEPTH";
+
+    static final String TASK_WAIT = "OAK_THREAD_POOL_TASK_WAIT";
+
+    static final String TASK_EXECUTION = "OAK_THREAD_POOL_TASK_EXECUTION";
+
+    private final ThreadPool threadPool;
+
+    private final CounterStats queueDepth;
+
+    private final TimerStats taskWait;
+
+    private final TimerStats taskExecution;
+
+    InstrumentedThreadPool(final ThreadPool threadPool, final StatisticsProvider statisticsProvider) {
+        this.threadPool = threadPool;
+        this.queueDepth = statisticsProvider.getCounterStats(QUEUE_DEPTH, StatsOptions.METRICS_ONLY);
+        this.taskWait = statisticsProvider.getTimer(TASK_WAIT, StatsOptions.METRICS_ONLY);
+        this.taskExecution = statisticsProvider.getTimer(TASK_EXECUTION, StatsOptions.METRICS_ONLY);
+    }
+
+    @Override
+    public void execute(final Runnable runnable) {
+        final Runnable task = instrument(Executors.callable(runnable));
+        queueDepth.inc();
+        try {
+            threadPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            queueDepth.dec();
+            throw e;
+        }
+    }
+
+    @Override
+    public <T> Future<T> submit(final Callable<T> callable) {
+        final Instrumented<T> task = instrument(callable);
+        queueDepth.inc();
+        try {
+            return threadPool.submit((Callable<T>) task);
+        } catch (RejectedExecutionException e) {
+            queueDepth.dec();
+            throw e;
+        }
+    }
+
+    @Override
+    public Future<?> submit(final Runnable runnable) {
+        return submit(Executors.callable(runnable));
+    }
+
+    @Override
+    public String getName() {
+        return threadPool.getName();
+    }
+
+    @Override
+    public ThreadPoolConfig getConfiguration() {
+        return threadPool.getConfiguration();
+    }
+
+    private <T> Instrumented<T> instrument(final Callable<T> callable) {
+        return new Instrumented<>(callable, System.nanoTime());
+    }
+
+    private final class Instrumented<T> implements Callable<T>, Runnable {
+
+        private final Callable<T> callable;
+
+        private final long queued;
+
+        private Instrumented(final Callable<T> callable, final long queued) {
+            this.callable = callable;
+            this.queued = queued;
+        }
+
+        @Override
+        public T call() throws Exception {
+            queueDepth.dec();
+            final long started = System.nanoTime();
+            taskWait.update(started - queued, TimeUnit.NANOSECONDS);
+            try {
+                return callable.call();
+            } finally {
+                taskExecution.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                // Executors.callable() only throws unchecked exceptions
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.InvalidSerializedDataException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.NoSuchWorkspaceException;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.lock.LockException;
+import javax.jcr.lock.LockManager;
+import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.QueryManager;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionException;
+import javax.jcr.version.VersionManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jackrabbit.api.JackrabbitWorkspace;
+import org.apache.jackrabbit.api.security.authorization.PrivilegeManager;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+
+/**
+ * A workspace handing out a {@link QueryManager} whose queries are recorded in the {@link QueryStatistics},
+ * answered from the {@link QueryResultCache} and guarded by the {@link QueryGuard}, if enabled. It keeps track of the
+ * queries whose results are still being iterated, to finish them on logout.
+ */
+class InstrumentedWorkspace implements JackrabbitWorkspace {
+
+    /**
+     * Maximum number of unfinished queries per session, further queries finish the oldest ones, e.g. for long-lived
+     * sessions not iterating their results to the end.
+     */
+    private static final int MAX_UNFINISHED_QUERIES = 100;
+
+    private final JackrabbitWorkspace wrapped;
+
+    private final InstrumentedJackrabbitSession session;
+
+    private final QueryStatistics statistics;
+
+    private final QueryResultCache cache;
+
+    private final QueryGuard guard;
+
+    private final String bundle;
+
+    private final String principals;
+
+    private final Set<InstrumentedQueryResult> unfinished = new LinkedHashSet<>();
+
+    private QueryManager queryManager;
+
+    InstrumentedWorkspace(
+            final JackrabbitWorkspace wrapped,
+            final InstrumentedJackrabbitSession session,
+            final QueryStatistics statistics,
+            final QueryResultCache cache,
+            final QueryGuard guard,
+            final String bundle,
+            final String principals) {
+        this.wrapped = wrapped;
+        this.session = session;
+        this.statistics = statistics;
+        this.cache = cache;
+        this.guard = guard;
+        this.bundle = bundle;
+        this.principals = principals;
+    }
+
+    @Override
+    public synchronized QueryManager getQueryManager() throws RepositoryException {
+        if (queryManager == null) {
+            queryManager = new InstrumentedQueryManager(wrapped.getQueryManager(), this);
+        }
+        return queryManager;
+    }
+
+    QueryStatistics getStatistics() {
+        return statistics;
+    }
+
+    QueryResultCache getCache() {
+        return cache;
+    }
+
+    QueryGuard getGuard() {
+        return guard;
+    }
+
+    String getBundle() {
+        return bundle;
+    }
+
+    long getRevision() {
+        return session.getRevision();
+    }
+
+    String getPrincipals() {
+        return principals;
+    }
+
+    void started(final InstrumentedQueryResult result) {
+        final List<InstrumentedQueryResult> oldest = new ArrayList<>();
+        synchronized (unfinished) {
+            unfinished.add(result);
+            final Iterator<InstrumentedQueryResult> iterator = unfinished.iterator();
+            while (unfinished.size() - oldest.size() > MAX_UNFINISHED_QUERIES) {
+                oldest.add(iterator.next());
+            }
+        }
+        oldest.forEach(InstrumentedQueryResult::finish);
+    }
+
+    void finished(final InstrumentedQueryResult result) {
+        synchronized (unfinished) {
+            unfinished.remove(result);
+        }
+    }
+
+    void finishQueries() {
+        final List<InstrumentedQueryResult> results;
+        synchronized (unfinished) {
+            results = new ArrayList<>(unfinished);
+        }
+        results.forEach(InstrumentedQueryResult::finish);
+    }
+
+    // only pure delegate methods below
+
+    @Override
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    public String getName() {
+        return wrapped.getName();
+    }
+
+    @Override
+    public void copy(final String srcAbsPath, final String destAbsPath)
+            throws ConstraintViolationException, VersionException, AccessDeniedException, PathNotFoundException,
+                    ItemExistsException, LockException, RepositoryException {
+        wrapped.copy(srcAbsPath, destAbsPath);
+    }
+
+    @Override
+    public void copy(final String srcWorkspace, final String srcAbsPath, final String destAbsPath)
+            throws NoSuchWorkspaceException, ConstraintViolationException, VersionException, AccessDeniedException,
+                    PathNotFoundException, ItemExistsException, LockException, RepositoryException {
+        wrapped.copy(srcWorkspace, srcAbsPath, destAbsPath);
+    }
+
+    @Override
+    public void clone(
+            final String srcWorkspace, final String srcAbsPath, final String destAbsPath, final boolean removeExisting)
+            throws NoSuchWorkspaceException, ConstraintViolationException, VersionException, AccessDeniedException,
+                    PathNotFoundException, ItemExistsException, LockException, RepositoryException {
+        wrapped.clone(srcWorkspace, srcAbsPath, destAbsPath, removeExisting);
+    }
+
+    @Override
+    public void move(final String srcAbsPath, final String destAbsPath)
+            throws ConstraintViolationException, VersionException, AccessDeniedException, PathNotFoundException,
+                    ItemExistsException, LockException, RepositoryException {
+        wrapped.move(srcAbsPath, destAbsPath);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void restore(final Version[] versions, final boolean removeExisting)
+            throws ItemExistsException, UnsupportedRepositoryOperationException, VersionException, LockException,
+                    InvalidItemStateException, RepositoryException {
+        wrapped.restore(versions, removeExisting);
+    }
+
+    @Override
+    public LockManager getLockManager() throws UnsupportedRepositoryOperationException, RepositoryException {
+        return wrapped.getLockManager();
+    }
+
+    @Override
+    public NamespaceRegistry getNamespaceRegistry() throws RepositoryException {
+        return wrapped.getNamespaceRegistry();
+    }
+
+    @Override
+    public NodeTypeManager getNodeTypeManager() throws RepositoryException {
+        return wrapped.getNodeTypeManager();
+    }
+
+    @Override
+    public ObservationManager getObservationManager()
+            throws UnsupportedRepositoryOperationException, RepositoryException {
+        return wrapped.getObservationManager();
+    }
+
+    @Override
+    public VersionManager getVersionManager() throws UnsupportedRepositoryOperationException, RepositoryException {
+        return wrapped.getVersionManager();
+    }
+
+    @Override
+    public String[] getAccessibleWorkspaceNames() throws RepositoryException {
+        return wrapped.getAccessibleWorkspaceNames();
+    }
+
+    @Override
+    public ContentHandler getImportContentHandler(final String parentAbsPath, final int uuidBehavior)
+            throws PathNotFoundException, ConstraintViolationException, VersionException, LockException,
+                    AccessDeniedException, RepositoryException {
+        return wrapped.getImportContentHandler(parentAbsPath, uuidBehavior);
+    }
+
+    @Override
+    public void importXML(final String parentAbsPath, final InputStream in, final int uuidBehavior)
+            throws IOException, VersionException, PathNotFoundException, ItemExistsException,
+                    ConstraintViolationException, InvalidSerializedDataException, LockException, AccessDeniedException,
+                    RepositoryException {
+        wrapped.importXML(parentAbsPath, in, uuidBehavior);
+    }
+
+    @Override
+    public void createWorkspace(final String name)
+            throws AccessDeniedException, UnsupportedRepositoryOperationException, RepositoryException {
+        wrapped.createWorkspace(name);
+    }
+
+    @Override
+    public void createWorkspace(final String name, final String srcWorkspace)
+            throws AccessDeniedException, UnsupportedRepositoryOperationException, NoSuchWorkspaceException,
+                    RepositoryException {
+        wrapped.createWorkspace(name, srcWorkspace);
+    }
+
+    @Override
+    public void createWorkspace(final String workspaceName, final InputSource workspaceTemplate)
+            throws AccessDeniedException, RepositoryException {
+        wrapped.createWorkspace(workspaceName, workspaceTemplate);
+    }
+
+    @Override
+    public void deleteWorkspace(final String name)
+            throws AccessDeniedException, UnsupportedRepositoryOperationException, NoSuchWorkspaceException,
+                    RepositoryException {
+        wrapped.deleteWorkspace(name);
+    }
+
+    @Override
+    public PrivilegeManager getPrivilegeManager() throws RepositoryException {
+        return wrapped.getPrivilegeManager();
+    }
+}
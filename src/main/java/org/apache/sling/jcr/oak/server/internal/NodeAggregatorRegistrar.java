@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.NodeAggregator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.Designate;
+
+/**
+ * Registers the {@link NodeAggregator} service with the configured aggregation rules. The service is registered anew
+ * when the rules change, for the index providers to pick them up.
+ */
+@Component(immediate = true)
+@Designate(ocd = NodeAggregatorRegistrarConfiguration.class)
+public class NodeAggregatorRegistrar {
+
+    private ServiceRegistration<NodeAggregator> serviceRegistration;
+
+    public NodeAggregatorRegistrar() {}
+
+    @Activate
+    @Modified
+    private void activate(final BundleContext bundleContext, final NodeAggregatorRegistrarConfiguration configuration) {
+        deactivate();
+        serviceRegistration = bundleContext.registerService(
+                NodeAggregator.class, new ConfigurableNodeAggregator(configuration.rules()), null);
+    }
+
+    @Deactivate
+    private void deactivate() {
+        if (serviceRegistration != null) {
+            serviceRegistration.unregister();
+            serviceRegistration = null;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(
+        name = "Apache Sling JCR Oak Repository – Aggregation Rules",
+        description = "Rules aggregating nodes into their ancestors for fulltext queries on indexes using the "
+                + "node aggregator, i.e. Lucene indexes with compatVersion 1")
+@interface NodeAggregatorRegistrarConfiguration {
+
+    @AttributeDefinition(
+            name = "Aggregation rules",
+            description = "Rules as 'nodeType;include[,include...][;depth=N]'. The includes are paths relative to "
+                    + "the aggregating node, whose names may be '*' to match any name, e.g. 'nt:file;jcr:content'. "
+                    + "The depth additionally aggregates the descendants of the included nodes down to the given "
+                    + "number of levels below the aggregating node, e.g. 'sling:Folder;*;depth=3'. Changes apply "
+                    + "without restarting the repository.")
+    String[] rules() default {"nt:file;jcr:content"};
+}
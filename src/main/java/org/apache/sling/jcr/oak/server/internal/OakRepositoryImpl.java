@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Credentials;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.jackrabbit.oak.api.ContentRepository;
+import org.apache.jackrabbit.oak.jcr.delegate.SessionDelegate;
+import org.apache.jackrabbit.oak.jcr.repository.RepositoryImpl;
+import org.apache.jackrabbit.oak.jcr.session.SessionContext;
+import org.apache.jackrabbit.oak.plugins.observation.CommitRateLimiter;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.whiteboard.Whiteboard;
+import org.apache.jackrabbit.oak.stats.StatisticManager;
+
+/**
+ * A {@link RepositoryImpl} supporting a per session observation queue length, passed as a login attribute.
+ */
+class OakRepositoryImpl extends RepositoryImpl {
+
+    /**
+     * Login attribute with the maximum number of pending revisions in the observation queue of each event listener
+     * registered with the session, an {@link Integer}. The repository wide length applies if missing.
+     */
+    static final String OBSERVATION_QUEUE_LENGTH = "org.apache.sling.jcr.oak.server.observationQueueLength";
+
+    /**
+     * Hands the queue length from {@link #login(Credentials, String, Map)} over to
+     * {@link #createSessionContext(StatisticManager, SecurityProvider, Map, SessionDelegate, int, CommitRateLimiter)},
+     * which Oak calls in between with attributes of its own instead of the login attributes. It is scoped to each
+     * login, so that logins nested in the login modules do not see the queue length of the outer one.
+     */
+    private final ThreadLocal<Integer> observationQueueLength = new ThreadLocal<>();
+
+    OakRepositoryImpl(
+            final ContentRepository contentRepository,
+            final Whiteboard whiteboard,
+            final SecurityProvider securityProvider,
+            final int observationQueueLength,
+            final CommitRateLimiter commitRateLimiter,
+            final boolean fastQueryResultSize) {
+        super(
+                contentRepository,
+                whiteboard,
+                securityProvider,
+                observationQueueLength,
+                commitRateLimiter,
+                fastQueryResultSize,
+                true);
+    }
+
+    @Override
+    public Session login(final Credentials credentials, final String workspaceName, Map<String, Object> attributes)
+            throws RepositoryException {
+        final Object queueLength = attributes != null ? attributes.get(OBSERVATION_QUEUE_LENGTH) : null;
+        if (queueLength != null) {
+            if (!(queueLength instanceof Integer) || (Integer) queueLength <= 0) {
+                throw new RepositoryException("Invalid observation queue length: " + queueLength);
+            }
+            attributes = new HashMap<>(attributes);
+            attributes.remove(OBSERVATION_QUEUE_LENGTH);
+        }
+        final Integer outer = observationQueueLength.get();
+        if (queueLength == null && outer == null) {
+            return super.login(credentials, workspaceName, attributes);
+        }
+        setObservationQueueLength((Integer) queueLength);
+        try {
+            return super.login(credentials, workspaceName, attributes);
+        } finally {
+            setObservationQueueLength(outer);
+        }
+    }
+
+    private void setObservationQueueLength(final Integer queueLength) {
+        if (queueLength != null) {
+            observationQueueLength.set(queueLength);
+        } else {
+            observationQueueLength.remove();
+        }
+    }
+
+    @Override
+    protected SessionContext createSessionContext(
+            final StatisticManager statisticManager,
+            final SecurityProvider securityProvider,
+            final Map<String, Object> attributes,
+            final SessionDelegate delegate,
+            final int observationQueueLength,
+            final CommitRateLimiter commitRateLimiter) {
+        final Integer queueLength = this.observationQueueLength.get();
+        return super.createSessionContext(
+                statisticManager,
+                securityProvider,
+                attributes,
+                delegate,
+                queueLength != null ? queueLength : observationQueueLength,
+                commitRateLimiter);
+    }
+}
@@ -18,6 +18,9 @@
  */
 package org.apache.sling.jcr.oak.server.internal;
 
+import javax.jcr.Credentials;
+import javax.jcr.LoginException;
+import javax.jcr.NoSuchWorkspaceException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.security.auth.Subject;
@@ -25,23 +28,18 @@ import javax.security.auth.Subject;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.jackrabbit.api.JackrabbitRepository;
-import org.apache.jackrabbit.oak.api.AuthInfo;
-import org.apache.jackrabbit.oak.spi.security.authentication.AuthInfoImpl;
-import org.apache.jackrabbit.oak.spi.security.principal.AdminPrincipal;
-import org.apache.jackrabbit.oak.spi.security.principal.SystemUserPrincipal;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.oak.jcr.repository.RepositoryImpl;
 import org.apache.sling.jcr.base.AbstractSlingRepository2;
 import org.apache.sling.jcr.base.AbstractSlingRepositoryManager;
 import org.osgi.framework.Bundle;
 
-import static java.util.Collections.emptyMap;
-import static java.util.Collections.emptySet;
-import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
 
 /**
  * A Sling repository implementation that wraps the Oak OSGi repository
@@ -49,35 +47,87 @@ import static java.util.Collections.singleton;
  */
 public class OakSlingRepository extends AbstractSlingRepository2 {
 
-    private static String first(Iterable<String> servicePrincipalNames) {
-        Iterator<String> iterator = servicePrincipalNames.iterator();
-        return iterator.hasNext() ? iterator.next() : null;
-    }
+    private static final Map<String, Object> ADMIN_LOGIN_ATTRIBUTES =
+            singletonMap(RepositoryImpl.REFRESH_INTERVAL, 0);
 
     private final String adminId;
 
+    private final SubjectCache subjectCache;
+
+    private final ServiceSessionPool sessionPool;
+
+    private final int observationQueueLength;
+
+    private final Map<String, Object> adminLoginAttributes;
+
+    private final Map<String, Object> serviceLoginAttributes;
+
+    private final QueryStatistics queryStatistics;
+
+    private final QueryResultCache queryResultCache;
+
+    private final QueryGuard queryGuard;
+
+    private final String bundle;
+
     protected OakSlingRepository(
             final AbstractSlingRepositoryManager manager, final Bundle usingBundle, final String adminId) {
+        this(manager, usingBundle, adminId, new SubjectCache(0), null, 0, null, null, null);
+    }
+
+    OakSlingRepository(
+            final AbstractSlingRepositoryManager manager,
+            final Bundle usingBundle,
+            final String adminId,
+            final SubjectCache subjectCache,
+            final ServiceSessionPool sessionPool,
+            final int observationQueueLength,
+            final QueryStatistics queryStatistics,
+            final QueryResultCache queryResultCache,
+            final QueryGuard queryGuard) {
         super(manager, usingBundle);
         this.adminId = adminId;
+        this.subjectCache = subjectCache;
+        this.sessionPool = sessionPool;
+        this.observationQueueLength = observationQueueLength;
+        if (observationQueueLength > 0) {
+            this.adminLoginAttributes = new HashMap<>(ADMIN_LOGIN_ATTRIBUTES);
+            this.adminLoginAttributes.put(OakRepositoryImpl.OBSERVATION_QUEUE_LENGTH, observationQueueLength);
+            this.serviceLoginAttributes =
+                    singletonMap(OakRepositoryImpl.OBSERVATION_QUEUE_LENGTH, observationQueueLength);
+        } else {
+            this.adminLoginAttributes = ADMIN_LOGIN_ATTRIBUTES;
+            this.serviceLoginAttributes = null;
+        }
+        this.queryStatistics = queryStatistics;
+        this.queryResultCache = queryResultCache;
+        this.queryGuard = queryGuard;
+        this.bundle = usingBundle != null ? String.valueOf(usingBundle.getSymbolicName()) : "";
+    }
+
+    @Override
+    public Session login(Credentials credentials, String workspace)
+            throws LoginException, NoSuchWorkspaceException, RepositoryException {
+        final long revision = getRevision();
+        return instrument(super.login(credentials, workspace), null, revision);
     }
 
     @Override
     protected Session createAdministrativeSession(String workspace) throws RepositoryException {
-        // TODO: use principal provider to retrieve admin principal
-        Set<AdminPrincipal> principals = singleton(() -> OakSlingRepository.this.adminId);
-        AuthInfo authInfo = new AuthInfoImpl(this.adminId, emptyMap(), principals);
-        Subject subject = new Subject(true, principals, singleton(authInfo), emptySet());
+        final long revision = getRevision();
+        return instrument(loginAdministrator(), null, revision);
+    }
+
+    private Session loginAdministrator() throws RepositoryException {
+        Subject subject = subjectCache.getAdministrativeSubject(this.adminId);
         try {
             return Subject.doAsPrivileged(
                     subject,
                     new PrivilegedExceptionAction<Session>() {
                         @Override
                         public Session run() throws Exception {
-                            Map<String, Object> attrs = new HashMap<String, Object>();
-                            attrs.put("oak.refresh-interval", 0);
                             // TODO OAK-803: Backwards compatibility of long-lived sessions
-                            return getJackrabbitRepository().login(null, null, attrs);
+                            return getJackrabbitRepository().login(null, null, adminLoginAttributes);
                         }
                     },
                     null);
@@ -89,19 +139,65 @@ public class OakSlingRepository extends AbstractSlingRepository2 {
     @Override
     protected Session createServiceSession(Iterable<String> servicePrincipalNames, String workspaceName)
             throws RepositoryException {
-        Set<SystemUserPrincipal> principals = new HashSet<>();
-        for (final String pName : servicePrincipalNames) principals.add(() -> pName);
+        final long revision = getRevision();
+        if (sessionPool != null) {
+            return instrument(
+                    sessionPool.acquire(
+                            servicePrincipalNames,
+                            workspaceName,
+                            observationQueueLength,
+                            () -> (JackrabbitSession) loginServicePrincipals(servicePrincipalNames, workspaceName)),
+                    servicePrincipalNames,
+                    revision);
+        }
+        return instrument(
+                loginServicePrincipals(servicePrincipalNames, workspaceName), servicePrincipalNames, revision);
+    }
 
-        // make sure to retain the first user id from the passed in servicePrincipalNames, for consistency
-        AuthInfo authInfo = new AuthInfoImpl(first(servicePrincipalNames), emptyMap(), principals);
-        Subject subject = new Subject(true, principals, singleton(authInfo), emptySet());
+    /**
+     * Wraps the session to record its queries, to answer them from the cache and to guard them, if enabled.
+     *
+     * @param principalNames the principals of a service session, {@code null} for sessions of a user
+     * @param revision the revision of the cache taken before the session was logged in or refreshed
+     */
+    private Session instrument(Session session, Iterable<String> principalNames, long revision) {
+        if ((queryStatistics == null && queryResultCache == null && queryGuard == null)
+                || !(session instanceof JackrabbitSession)) {
+            return session;
+        }
+        String principals = null;
+        if (principalNames != null) {
+            Set<String> names = new TreeSet<>();
+            principalNames.forEach(names::add);
+            principals = "principals:" + String.join(",", names);
+        }
+        return new InstrumentedJackrabbitSession(
+                (JackrabbitSession) session,
+                queryStatistics,
+                queryResultCache,
+                queryGuard,
+                bundle,
+                principals,
+                revision);
+    }
+
+    /**
+     * Returns the revision of the cache, to be taken before a session is logged in.
+     */
+    private long getRevision() {
+        return queryResultCache != null ? queryResultCache.getRevision() : 0;
+    }
+
+    private Session loginServicePrincipals(Iterable<String> servicePrincipalNames, String workspaceName)
+            throws RepositoryException {
+        Subject subject = subjectCache.getServiceSubject(servicePrincipalNames);
         try {
             return Subject.doAsPrivileged(
                     subject,
                     new PrivilegedExceptionAction<Session>() {
                         @Override
                         public Session run() throws Exception {
-                            return getRepository().login(null, workspaceName);
+                            return getJackrabbitRepository().login(null, workspaceName, serviceLoginAttributes);
                         }
                     },
                     null);
@@ -110,7 +206,10 @@ public class OakSlingRepository extends AbstractSlingRepository2 {
         }
     }
 
-    private JackrabbitRepository getJackrabbitRepository() {
+    /**
+     * Returns the repository of the manager, overridden by the benchmarks, which do not start the manager.
+     */
+    JackrabbitRepository getJackrabbitRepository() {
         return (JackrabbitRepository) super.getRepository();
     }
 }
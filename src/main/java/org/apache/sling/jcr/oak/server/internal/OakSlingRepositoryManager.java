@@ -20,10 +20,18 @@ package org.apache.sling.jcr.oak.server.internal;
 
 import javax.jcr.Repository;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
-import org.apache.jackrabbit.JcrConstants;
 import org.apache.jackrabbit.api.JackrabbitRepository;
 import org.apache.jackrabbit.oak.InitialContent;
 import org.apache.jackrabbit.oak.Oak;
@@ -32,39 +40,47 @@ import org.apache.jackrabbit.oak.jcr.Jcr;
 import org.apache.jackrabbit.oak.osgi.OsgiWhiteboard;
 import org.apache.jackrabbit.oak.plugins.commit.JcrConflictHandler;
 import org.apache.jackrabbit.oak.plugins.index.WhiteboardIndexEditorProvider;
-import org.apache.jackrabbit.oak.plugins.index.aggregate.SimpleNodeAggregator;
 import org.apache.jackrabbit.oak.plugins.observation.CommitRateLimiter;
 import org.apache.jackrabbit.oak.plugins.version.VersionHook;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
 import org.apache.jackrabbit.oak.spi.commit.WhiteboardEditorProvider;
 import org.apache.jackrabbit.oak.spi.lifecycle.RepositoryInitializer;
-import org.apache.jackrabbit.oak.spi.query.QueryIndex.NodeAggregator;
+import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
+import org.apache.jackrabbit.oak.spi.query.QueryLimits;
 import org.apache.jackrabbit.oak.spi.query.WhiteboardIndexProvider;
 import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
 import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
 import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
-import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.whiteboard.CompositeRegistration;
+import org.apache.jackrabbit.oak.spi.whiteboard.Registration;
 import org.apache.jackrabbit.oak.spi.whiteboard.Tracker;
 import org.apache.jackrabbit.oak.spi.whiteboard.Whiteboard;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
 import org.apache.sling.jcr.base.AbstractSlingRepository2;
 import org.apache.sling.jcr.base.AbstractSlingRepositoryManager;
 import org.apache.sling.serviceusermapping.ServiceUserMapper;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import static java.util.Collections.singleton;
-import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
-import static org.apache.jackrabbit.oak.plugins.index.IndexUtils.createIndexDefinition;
+import static org.apache.jackrabbit.oak.spi.whiteboard.WhiteboardUtils.registerMBean;
+import static org.apache.jackrabbit.oak.spi.whiteboard.WhiteboardUtils.scheduleWithFixedDelay;
 
 /**
  * A Sling repository implementation that wraps the Oak repository
@@ -78,6 +94,25 @@ import static org.apache.jackrabbit.oak.plugins.index.IndexUtils.createIndexDefi
 @Designate(ocd = OakSlingRepositoryManagerConfiguration.class)
 public class OakSlingRepositoryManager extends AbstractSlingRepositoryManager {
 
+    private static final String SERVICE_USER_MAPPED = "org.apache.sling.serviceusermapping.ServiceUserMapped";
+
+    /**
+     * Oak's query limits and the system properties overriding them, see {@code QueryEngineSettings}.
+     */
+    private static final long DEFAULT_QUERY_LIMIT_READS = 100000;
+
+    private static final long DEFAULT_QUERY_LIMIT_IN_MEMORY = 500000;
+
+    private static final String QUERY_LIMIT_READS = "oak.queryLimitReads";
+
+    private static final String QUERY_LIMIT_IN_MEMORY = "oak.queryLimitInMemory";
+
+    private static final String FAIL_TRAVERSAL = "oak.queryFailTraversal";
+
+    private static final String FULL_TEXT_COMPARISON_WITHOUT_INDEX = "oak.queryFullTextComparisonWithoutIndex";
+
+    private final Logger logger = LoggerFactory.getLogger(OakSlingRepositoryManager.class);
+
     @Reference
     private ServiceUserMapper serviceUserMapper;
 
@@ -94,16 +129,64 @@ public class OakSlingRepositoryManager extends AbstractSlingRepositoryManager {
 
     private Tracker<RepositoryInitializer> initializers;
 
-    private CommitRateLimiter commitRateLimiter;
+    private AdaptiveCommitRateLimiter commitRateLimiter;
+
+    private QueryResultCache queryResultCache;
+
+    private QueryGuard queryGuard;
 
     private OakSlingRepositoryManagerConfiguration configuration;
 
+    private Map<String, Integer> observationQueueLengths;
+
+    private Registration mbeanRegistration;
+
     @Reference(policy = ReferencePolicy.STATIC, policyOption = ReferencePolicyOption.GREEDY)
     private SecurityProvider securityProvider;
 
-    private ServiceRegistration<NodeAggregator> nodeAggregatorRegistration;
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile StatisticsProvider statisticsProvider;
+
+    @Reference(
+            cardinality = ReferenceCardinality.OPTIONAL,
+            policy = ReferencePolicy.DYNAMIC,
+            target = "(" + DefaultThreadPoolRegistrar.OAK_EXECUTOR + "=true)")
+    private volatile Executor oakExecutor;
+
+    private ExecutorService defaultExecutor;
+
+    private volatile ServiceSessionPool sessionPool;
+
+    private volatile QueryStatistics queryStatistics;
+
+    private volatile SubjectCache subjectCache;
+
+    private final ServiceListener serviceUserMappingListener = event -> {
+        final SubjectCache cache = subjectCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    };
+
     private ServiceRegistration<ContentRepository> contentRepositoryRegistration;
 
+    public OakSlingRepositoryManager() {}
+
+    /**
+     * Creates a manager outside of OSGi, with the references and the configuration Declarative Services would
+     * inject, for the benchmarks to build the repository through {@link #createJcr(Whiteboard, StartupReport)}.
+     */
+    OakSlingRepositoryManager(
+            final NodeStore nodeStore,
+            final SecurityProvider securityProvider,
+            final Executor oakExecutor,
+            final OakSlingRepositoryManagerConfiguration configuration) {
+        this.nodeStore = nodeStore;
+        this.securityProvider = securityProvider;
+        this.oakExecutor = oakExecutor;
+        this.configuration = configuration;
+    }
+
     @Override
     protected ServiceUserMapper getServiceUserMapper() {
         return this.serviceUserMapper;
@@ -112,41 +195,227 @@ public class OakSlingRepositoryManager extends AbstractSlingRepositoryManager {
     @Override
     protected Repository acquireRepository() {
         final BundleContext bundleContext = componentContext.getBundleContext();
+        final StartupReport startupReport = new StartupReport(getStatisticsProvider());
         final Whiteboard whiteboard = new OsgiWhiteboard(bundleContext);
+        final Jcr jcr = createJcr(whiteboard, startupReport);
+
+        long started = System.nanoTime();
+        ContentRepository contentRepository = jcr.createContentRepository();
+        startupReport.record(StartupReport.Phase.CREATE_CONTENT_REPOSITORY, null, started);
+        contentRepositoryRegistration = bundleContext.registerService(ContentRepository.class, contentRepository, null);
+
+        if (configuration.oak_session_pool_enabled()) {
+            sessionPool = new ServiceSessionPool(
+                    configuration.oak_session_pool_maxIdle(),
+                    configuration.oak_session_pool_maxIdlePerKey(),
+                    configuration.oak_session_pool_idleTimeout(),
+                    getStatisticsProvider());
+        }
+
+        if (configuration.oak_query_statistics_enabled()) {
+            queryStatistics = new QueryStatistics(
+                    configuration.oak_query_statistics_slowQueryThreshold(),
+                    configuration.oak_query_statistics_maxStatements(),
+                    getStatisticsProvider());
+        }
+
+        started = System.nanoTime();
+        final JackrabbitRepository repository = createRepository(jcr, whiteboard);
+        startupReport.record(StartupReport.Phase.CREATE_REPOSITORY, null, started);
+        startupReport.finish();
+
+        final ObservationQueueMonitor monitor = new ObservationQueueMonitor(bundleContext, getStatisticsProvider());
+        final ParallelReindexer reindexer =
+                new ParallelReindexer(nodeStore, indexEditorProvider, getStatisticsProvider());
+        mbeanRegistration = new CompositeRegistration(
+                registerMBean(
+                        whiteboard,
+                        ObservationQueueStatsMBean.class,
+                        monitor,
+                        ObservationQueueStatsMBean.TYPE,
+                        "Observation queue statistics"),
+                scheduleWithFixedDelay(whiteboard, monitor, 1),
+                registerMBean(
+                        whiteboard, StartupReportMBean.class, startupReport, StartupReportMBean.TYPE, "Startup"),
+                registerMBean(
+                        whiteboard,
+                        ParallelReindexMBean.class,
+                        reindexer,
+                        ParallelReindexMBean.TYPE,
+                        "Parallel reindex"),
+                reindexer::close);
+        if (queryStatistics != null) {
+            mbeanRegistration = new CompositeRegistration(
+                    mbeanRegistration,
+                    registerMBean(
+                            whiteboard,
+                            QueryStatisticsMBean.class,
+                            queryStatistics,
+                            QueryStatisticsMBean.TYPE,
+                            "Query statistics"));
+        }
+
+        return new TcclWrappingJackrabbitRepository(repository);
+    }
+
+    /**
+     * Sets up the Oak repository on top of the given whiteboard. Kept separate from {@link #acquireRepository()} so
+     * that the benchmarks can build the very same repository outside of an OSGi framework.
+     */
+    Jcr createJcr(final Whiteboard whiteboard, final StartupReport startupReport) {
+        final long started = System.nanoTime();
         this.initializers = whiteboard.track(RepositoryInitializer.class);
         this.editorProvider.start(whiteboard);
         this.indexProvider.start(whiteboard);
         this.indexEditorProvider.start(whiteboard);
+        startupReport.record(StartupReport.Phase.WHITEBOARD_TRACKING, null, started);
 
-        final Oak oak = new Oak(nodeStore).withAsyncIndexing("async", 5);
+        // Oak picks any of the Executor services for observation, so hand it the one to use explicitly
+        this.defaultExecutor = Oak.defaultExecutorService();
+        final Oak oak = new Oak(nodeStore).with((Executor) this::execute);
+        withAsyncIndexing(oak, configuration.oak_async_indexing_lanes());
 
         final Jcr jcr = new Jcr(oak, false)
-                .with(new InitialContent())
-                .with(new ExtraSlingContent())
                 .with(JcrConflictHandler.createJcrConflictHandler())
                 .with(new VersionHook())
                 .with(whiteboard)
                 .with(securityProvider)
                 .with(editorProvider)
                 // index stuff
-                .with(indexProvider)
+                .with(getQueryIndexProvider())
                 .with(indexEditorProvider)
-                .with(getDefaultWorkspace())
+                .with(configuration.defaultWorkspace())
                 .withFastQueryResultSize(configuration.oak_query_fastResultSize())
                 .withObservationQueueLength(configuration.oak_observation_queue_length());
-
-        for (RepositoryInitializer initializer : initializers.getServices()) {
-            jcr.with(initializer);
+        final QueryLimits queryLimits = getQueryLimits();
+        if (queryLimits != null) {
+            jcr.with(queryLimits);
         }
 
+        final List<RepositoryInitializer> repositoryInitializers = new ArrayList<>();
+        repositoryInitializers.add(new InitialContent());
+        repositoryInitializers.add(new ExtraSlingContent(configuration.oak_propertyIndexes()));
+        repositoryInitializers.addAll(initializers.getServices());
+        jcr.with(new InitializerRunner(
+                repositoryInitializers,
+                configuration.oak_initializers_skipUnchanged(),
+                getInitializerFingerprints(),
+                new HashSet<>(Arrays.asList(configuration.oak_initializers_parallel())),
+                this::execute,
+                startupReport));
+
         if (commitRateLimiter != null) {
-            jcr.with(commitRateLimiter);
+            commitRateLimiter.start(whiteboard);
+            jcr.with((CommitRateLimiter) commitRateLimiter);
+            jcr.with((Observer) commitRateLimiter);
+        }
+        if (queryResultCache != null) {
+            jcr.with(queryResultCache);
         }
 
-        ContentRepository contentRepository = jcr.createContentRepository();
-        contentRepositoryRegistration = bundleContext.registerService(ContentRepository.class, contentRepository, null);
+        return jcr;
+    }
 
-        return new TcclWrappingJackrabbitRepository((JackrabbitRepository) jcr.createRepository());
+    /**
+     * Returns the {@value InitializerRunner#FINGERPRINT} properties of the repository initializer services, none
+     * outside of OSGi.
+     */
+    private Map<RepositoryInitializer, String> getInitializerFingerprints() {
+        final Map<RepositoryInitializer, String> fingerprints = new IdentityHashMap<>();
+        if (componentContext == null) {
+            return fingerprints;
+        }
+        final BundleContext bundleContext = componentContext.getBundleContext();
+        final Collection<ServiceReference<RepositoryInitializer>> references;
+        try {
+            references = bundleContext.getServiceReferences(
+                    RepositoryInitializer.class, "(" + InitializerRunner.FINGERPRINT + "=*)");
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        for (ServiceReference<RepositoryInitializer> reference : references) {
+            // the same instance the whiteboard tracks, which keeps using it
+            final RepositoryInitializer initializer = bundleContext.getService(reference);
+            if (initializer != null) {
+                fingerprints.put(initializer, String.valueOf(reference.getProperty(InitializerRunner.FINGERPRINT)));
+                bundleContext.ungetService(reference);
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Returns the query limits configured, leaving the ones at their defaults to the system properties Oak reads its
+     * defaults from, or {@code null} to leave all query settings to Oak if none is configured. The strict path
+     * restriction is not configured here and keeps Oak's default.
+     */
+    private QueryLimits getQueryLimits() {
+        if (configuration.oak_query_limitReads() == DEFAULT_QUERY_LIMIT_READS
+                && configuration.oak_query_limitInMemory() == DEFAULT_QUERY_LIMIT_IN_MEMORY
+                && !configuration.oak_query_failTraversal()) {
+            return null;
+        }
+        final long limitReads = getQueryLimit(
+                configuration.oak_query_limitReads(), DEFAULT_QUERY_LIMIT_READS, QUERY_LIMIT_READS);
+        final long limitInMemory = getQueryLimit(
+                configuration.oak_query_limitInMemory(), DEFAULT_QUERY_LIMIT_IN_MEMORY, QUERY_LIMIT_IN_MEMORY);
+        final boolean failTraversal = configuration.oak_query_failTraversal() || Boolean.getBoolean(FAIL_TRAVERSAL);
+        final boolean fullTextComparisonWithoutIndex = Boolean.getBoolean(FULL_TEXT_COMPARISON_WITHOUT_INDEX);
+        return new QueryLimits() {
+
+            @Override
+            public long getLimitInMemory() {
+                return limitInMemory;
+            }
+
+            @Override
+            public long getLimitReads() {
+                return limitReads;
+            }
+
+            @Override
+            public boolean getFullTextComparisonWithoutIndex() {
+                return fullTextComparisonWithoutIndex;
+            }
+
+            @Override
+            public boolean getFailTraversal() {
+                return failTraversal;
+            }
+        };
+    }
+
+    private static long getQueryLimit(final long configured, final long defaultLimit, final String property) {
+        return configured != defaultLimit ? configured : Long.getLong(property, defaultLimit);
+    }
+
+    /**
+     * Returns the index provider, wrapped to cache plans or to bind the index cursors to the query timeout.
+     */
+    private QueryIndexProvider getQueryIndexProvider() {
+        final boolean planCache = configuration.oak_query_planCache_enabled();
+        if (!planCache && configuration.oak_query_timeout() <= 0) {
+            return indexProvider;
+        }
+        return new CachingQueryIndexProvider(
+                indexProvider,
+                planCache ? configuration.oak_query_planCache_maxEntries() : 0,
+                configuration.oak_query_planCache_maxAge(),
+                getStatisticsProvider());
+    }
+
+    /**
+     * Creates the JCR repository like {@link Jcr#createRepository()}, but supporting the observation queue length
+     * per bundle.
+     */
+    JackrabbitRepository createRepository(final Jcr jcr, final Whiteboard whiteboard) {
+        return new OakRepositoryImpl(
+                jcr.createContentRepository(),
+                whiteboard,
+                securityProvider,
+                configuration.oak_observation_queue_length(),
+                commitRateLimiter,
+                configuration.oak_query_fastResultSize());
     }
 
     @Override
@@ -157,7 +426,18 @@ public class OakSlingRepositoryManager extends AbstractSlingRepositoryManager {
     @Override
     protected AbstractSlingRepository2 create(Bundle usingBundle) {
         final String adminId = getAdminId();
-        return new OakSlingRepository(this, usingBundle, adminId);
+        final Integer observationQueueLength =
+                usingBundle != null ? observationQueueLengths.get(usingBundle.getSymbolicName()) : null;
+        return new OakSlingRepository(
+                this,
+                usingBundle,
+                adminId,
+                subjectCache,
+                sessionPool,
+                observationQueueLength != null ? observationQueueLength : 0,
+                queryStatistics,
+                queryResultCache,
+                queryGuard);
     }
 
     @Override
@@ -167,11 +447,27 @@ public class OakSlingRepositoryManager extends AbstractSlingRepositoryManager {
 
     @Override
     protected void disposeRepository(Repository repository) {
+        if (this.mbeanRegistration != null) {
+            this.mbeanRegistration.unregister();
+            this.mbeanRegistration = null;
+        }
+        if (this.sessionPool != null) {
+            this.sessionPool.close();
+            this.sessionPool = null;
+        }
+        this.queryStatistics = null;
+        if (this.queryResultCache != null) {
+            this.queryResultCache.clear();
+        }
+        if (this.commitRateLimiter != null) {
+            this.commitRateLimiter.stop();
+        }
         this.initializers.stop();
         this.indexProvider.stop();
         this.indexEditorProvider.stop();
         this.editorProvider.stop();
         ((JackrabbitRepository) repository).shutdown();
+        this.defaultExecutor.shutdown();
     }
 
     @Activate
@@ -184,69 +480,109 @@ public class OakSlingRepositoryManager extends AbstractSlingRepositoryManager {
         final String defaultWorkspace = configuration.defaultWorkspace();
         final boolean disableLoginAdministrative = !configuration.admin_login_enabled();
 
-        if (configuration.oak_observation_limitCommitRate()) {
-            commitRateLimiter = new CommitRateLimiter();
+        this.observationQueueLengths =
+                parseObservationQueueLengths(configuration.oak_observation_queue_length_bundles());
+        this.subjectCache = new SubjectCache(configuration.oak_session_subjectCache_size());
+        try {
+            // the service user mapper registers a ServiceUserMapped service per mapping
+            bundleContext.addServiceListener(
+                    serviceUserMappingListener, "(" + Constants.OBJECTCLASS + "=" + SERVICE_USER_MAPPED + ")");
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
         }
-        this.nodeAggregatorRegistration =
-                bundleContext.registerService(NodeAggregator.class, getNodeAggregator(), null);
 
+        if (configuration.oak_observation_limitCommitRate()) {
+            commitRateLimiter = new AdaptiveCommitRateLimiter(
+                    configuration.oak_observation_commitRateLimit_queueFillThreshold(),
+                    configuration.oak_observation_commitRateLimit_backlogThreshold(),
+                    configuration.oak_observation_commitRateLimit_latencyThreshold(),
+                    configuration.oak_observation_commitRateLimit_maxDelay(),
+                    configuration.oak_observation_commitRateLimit_exemptUsers(),
+                    getStatisticsProvider());
+        }
+        if (configuration.oak_query_failTraversal()
+                || configuration.oak_query_limitReads() != DEFAULT_QUERY_LIMIT_READS
+                || configuration.oak_query_limitInMemory() != DEFAULT_QUERY_LIMIT_IN_MEMORY
+                || configuration.oak_query_timeout() > 0) {
+            queryGuard = new QueryGuard(
+                    configuration.oak_query_failTraversal_exemptPaths(),
+                    Math.max(0, configuration.oak_query_timeout()),
+                    getStatisticsProvider());
+        }
+        if (configuration.oak_query_cache_enabled()) {
+            queryResultCache = new QueryResultCache(
+                    configuration.oak_query_cache_maxEntries(),
+                    configuration.oak_query_cache_maxRows(),
+                    configuration.oak_query_cache_asyncIndexDelay(),
+                    getStatisticsProvider());
+        }
         super.start(bundleContext, new Config(defaultWorkspace, disableLoginAdministrative));
     }
 
     @Deactivate
     private void deactivate() {
         super.stop();
+        this.componentContext.getBundleContext().removeServiceListener(serviceUserMappingListener);
+        this.subjectCache = null;
         this.componentContext = null;
-        this.nodeAggregatorRegistration.unregister();
         this.contentRepositoryRegistration.unregister();
     }
 
-    private String getAdminId() {
-        return securityProvider
-                .getConfiguration(UserConfiguration.class)
-                .getParameters()
-                .getConfigValue(UserConstants.PARAM_ADMIN_ID, UserConstants.DEFAULT_ADMIN_ID);
-    }
-
-    private static NodeAggregator getNodeAggregator() {
-        return new SimpleNodeAggregator()
-                .newRuleWithName(JcrConstants.NT_FILE, Collections.singletonList(JcrConstants.JCR_CONTENT));
+    private void execute(final Runnable command) {
+        final Executor executor = oakExecutor;
+        (executor != null ? executor : defaultExecutor).execute(command);
     }
 
-    private static final class ExtraSlingContent implements RepositoryInitializer {
-
-        @Override
-        public void initialize(NodeBuilder root) {
-            if (root.hasChildNode(INDEX_DEFINITIONS_NAME)) {
-                NodeBuilder index = root.child(INDEX_DEFINITIONS_NAME);
-
-                // jcr:
-                property(index, "jcrLanguage", "jcr:language");
-                property(index, "jcrLockOwner", "jcr:lockOwner");
-
-                // sling:
-                property(index, "slingAlias", "sling:alias");
-                property(index, "slingResource", "sling:resource");
-                property(index, "slingResourceType", "sling:resourceType");
-                property(index, "slingVanityPath", "sling:vanityPath");
-
-                // various
-                property(index, "event.job.topic", "event.job.topic");
-                property(index, "slingeventEventId", "slingevent:eventId");
-                property(index, "extensionType", "extensionType");
-                property(index, "lockCreated", "lock.created");
-                property(index, "status", "status");
-                property(index, "type", "type");
+    private void withAsyncIndexing(final Oak oak, final String[] lanes) {
+        for (String lane : lanes) {
+            final String[] parts = lane.split(":");
+            long interval = 0;
+            if (parts.length == 2) {
+                try {
+                    interval = Long.parseLong(parts[1].trim());
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+            }
+            if (interval > 0 && !parts[0].trim().isEmpty()) {
+                oak.withAsyncIndexing(parts[0].trim(), interval);
+            } else {
+                logger.warn("ignoring invalid async indexing lane '{}', expected 'name:interval'", lane);
             }
         }
+    }
 
-        /**
-         * A convenience method to create a non-unique property index.
-         */
-        private static void property(NodeBuilder index, String indexName, String propertyName) {
-            if (!index.hasChildNode(indexName)) {
-                createIndexDefinition(index, indexName, true, false, singleton(propertyName), null);
+    private Map<String, Integer> parseObservationQueueLengths(final String[] entries) {
+        final Map<String, Integer> lengths = new HashMap<>();
+        for (String entry : entries) {
+            final String[] parts = entry.split("=");
+            int length = 0;
+            if (parts.length == 2) {
+                try {
+                    length = Integer.parseInt(parts[1].trim());
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+            }
+            if (length > 0 && !parts[0].trim().isEmpty()) {
+                lengths.put(parts[0].trim(), length);
+            } else {
+                logger.warn(
+                        "ignoring invalid observation queue length '{}', expected 'bundleSymbolicName=length'", entry);
             }
         }
+        return lengths;
+    }
+
+    private String getAdminId() {
+        return securityProvider
+                .getConfiguration(UserConfiguration.class)
+                .getParameters()
+                .getConfigValue(UserConstants.PARAM_ADMIN_ID, UserConstants.DEFAULT_ADMIN_ID);
+    }
+
+    private StatisticsProvider getStatisticsProvider() {
+        final StatisticsProvider provider = statisticsProvider;
+        return provider != null ? provider : StatisticsProvider.NOOP;
     }
 }
@@ -56,15 +56,228 @@ import org.osgi.service.metatype.annotations.ObjectClassDefinition;
             description = "Maximum number of pending revisions in a observation listener queue")
     int oak_observation_queue_length() default 1000;
 
+    @AttributeDefinition(
+            name = "Observation queue length per bundle",
+            description = "Observation queue lengths of the event listeners registered with sessions obtained by a "
+                    + "bundle, as 'bundleSymbolicName=length'. Other bundles use the observation queue length. "
+                    + "The queue statistics per listener are available from the ObservationQueueStats MBean.")
+    String[] oak_observation_queue_length_bundles() default {};
+
     @AttributeDefinition(
             name = "Commit rate limiter",
-            description = "Limit the commit rate once the number of pending revisions in the observation "
-                    + "queue exceed 90% of its capacity.")
+            description = "Delay commits gradually as observation falls behind, depending on the fill level of "
+                    + "the observation queues, the backlog of the event listeners and the commit latency.")
     boolean oak_observation_limitCommitRate() default false;
 
+    @AttributeDefinition(
+            name = "Commit rate limiter queue fill threshold",
+            description = "Fill level of an observation queue, between 0 and 1, from which commits are delayed. "
+                    + "Commits are delayed by the maximum delay once a queue is full.")
+    double oak_observation_commitRateLimit_queueFillThreshold() default 0.75;
+
+    @AttributeDefinition(
+            name = "Commit rate limiter backlog threshold",
+            description = "Backlog of an event listener in milliseconds from which commits are delayed. Commits are "
+                    + "delayed by the maximum delay at twice the threshold. A value of 0 disables this check.")
+    long oak_observation_commitRateLimit_backlogThreshold() default 60000;
+
+    @AttributeDefinition(
+            name = "Commit rate limiter latency threshold",
+            description = "Average time in milliseconds to persist a commit from which commits are delayed. Commits "
+                    + "are delayed by the maximum delay at twice the threshold. A value of 0 disables this check.")
+    long oak_observation_commitRateLimit_latencyThreshold() default 0;
+
+    @AttributeDefinition(
+            name = "Commit rate limiter maximum delay",
+            description = "Maximum delay of a commit in milliseconds")
+    long oak_observation_commitRateLimit_maxDelay() default 1000;
+
+    @AttributeDefinition(
+            name = "Commit rate limiter exempt users",
+            description = "Ids of the (service) users whose commits are never delayed")
+    String[] oak_observation_commitRateLimit_exemptUsers() default {};
+
+    @AttributeDefinition(
+            name = "Property indexes",
+            description = "Property indexes to create if missing, as 'name;property[;option=value...]'. The options "
+                    + "are 'async' (the async indexing lane, synchronous if missing), 'unique' (true or false), "
+                    + "'declaringNodeTypes' (comma separated node types), 'includedPaths' and 'excludedPaths' "
+                    + "(comma separated paths, e.g. 'event.job.topic;event.job.topic;includedPaths=/var/eventing') "
+                    + "and the cost hints 'entryCount' and 'keyCount'. Existing indexes are not changed, a warning "
+                    + "is logged if they differ, so update their definition manually and reindex them. Removing an "
+                    + "index from the list does not remove it from the repository.")
+    String[] oak_propertyIndexes() default {
+        // jcr:
+        "jcrLanguage;jcr:language",
+        "jcrLockOwner;jcr:lockOwner",
+        // sling:
+        "slingAlias;sling:alias",
+        "slingResource;sling:resource",
+        "slingResourceType;sling:resourceType",
+        "slingVanityPath;sling:vanityPath",
+        // various
+        "event.job.topic;event.job.topic",
+        "slingeventEventId;slingevent:eventId",
+        "extensionType;extensionType",
+        "lockCreated;lock.created",
+        "status;status",
+        "type;type"
+    };
+
+    @AttributeDefinition(
+            name = "Skip unchanged initializers",
+            description = "Whether to skip the repository initializers which already ran with the same configuration "
+                    + "on a previous start. Only Oak's initial content and the initializer services registered with an "
+                    + "'oak.initializer.fingerprint' property, which has to change with their configuration, are "
+                    + "skipped. The Sling property indexes and the Lucene index definitions are still checked for "
+                    + "drift on every start. Content created by a skipped initializer and removed since is not "
+                    + "restored.")
+    boolean oak_initializers_skipUnchanged() default false;
+
+    @AttributeDefinition(
+            name = "Parallel initializers",
+            description = "Class names of the repository initializers which are independent of each other and may "
+                    + "run concurrently when consecutive, each on its own branch of the content created so far. They "
+                    + "must neither read nor write content of other initializers. Changes to the same content fail "
+                    + "the repository start.")
+    String[] oak_initializers_parallel() default {};
+
     @AttributeDefinition(
             name = "Fast query result size",
             description =
                     "Whether the query result size should return an estimation (or -1 if disabled) for large queries")
     boolean oak_query_fastResultSize() default true;
+
+    @AttributeDefinition(
+            name = "Query read limit",
+            description = "Maximum number of nodes a query may read or traverse, further reads fail the query")
+    long oak_query_limitReads() default 100000;
+
+    @AttributeDefinition(
+            name = "Query in-memory limit",
+            description = "Maximum number of nodes a query may hold in memory, e.g. for sorting or unions, further "
+                    + "nodes fail the query")
+    long oak_query_limitInMemory() default 500000;
+
+    @AttributeDefinition(
+            name = "Fail traversal queries",
+            description = "Whether queries which cannot use an index and would traverse the repository are "
+                    + "rejected before they are run")
+    boolean oak_query_failTraversal() default false;
+
+    @AttributeDefinition(
+            name = "Traversal exempt paths",
+            description = "Paths below which queries run through the sessions of this repository may traverse the "
+                    + "repository even if traversal queries are rejected, e.g. for small configuration trees. "
+                    + "Statements with options of their own are not exempted.")
+    String[] oak_query_failTraversal_exemptPaths() default {};
+
+    @AttributeDefinition(
+            name = "Query timeout",
+            description = "Time in ms after which queries run through the sessions of this repository are stopped, "
+                    + "0 for none. Queries may shorten it with the sling:queryTimeout binding, a binding of 0 or "
+                    + "less keeps it. The timeout is checked between the rows of the result and between the "
+                    + "entries read from indexes. Queries traversing the repository are only checked between "
+                    + "rows, so bound them with the query read limit.")
+    long oak_query_timeout() default 0;
+
+    @AttributeDefinition(
+            name = "Query statistics",
+            description = "Whether to record the latency and the number of rows of the queries run through the "
+                    + "sessions of this repository, per statement and calling bundle. The statistics are available "
+                    + "as metrics and through the QueryStatistics MBean.")
+    boolean oak_query_statistics_enabled() default false;
+
+    @AttributeDefinition(
+            name = "Slow query threshold",
+            description = "Latency in milliseconds, including the iteration of the result, from which queries are "
+                    + "logged with their plan if the query statistics are enabled. A value of 0 disables the log.")
+    long oak_query_statistics_slowQueryThreshold() default 1000;
+
+    @AttributeDefinition(
+            name = "Query statistics size",
+            description = "Maximum number of statements to keep statistics for")
+    int oak_query_statistics_maxStatements() default 1000;
+
+    @AttributeDefinition(
+            name = "Query result cache",
+            description = "Whether to cache the results of the JCR-SQL2 and XPath queries run through the sessions "
+                    + "of this repository, per statement, bind values and principals of the session. Results are "
+                    + "invalidated as the properties, node types and paths they depend on change, or entirely on "
+                    + "changes from other cluster nodes and changes to access control content.")
+    boolean oak_query_cache_enabled() default false;
+
+    @AttributeDefinition(
+            name = "Query result cache size",
+            description = "Maximum number of cached query results, the least recently used are evicted")
+    int oak_query_cache_maxEntries() default 1000;
+
+    @AttributeDefinition(
+            name = "Query result cache rows",
+            description = "Maximum number of rows of a cached query result, larger results are not cached")
+    int oak_query_cache_maxRows() default 1000;
+
+    @AttributeDefinition(
+            name = "Query result cache async index delay",
+            description = "Time in milliseconds after a change during which the query results depending on it are "
+                    + "not cached, as asynchronous indexes may not reflect it yet")
+    long oak_query_cache_asyncIndexDelay() default 10000;
+
+    @AttributeDefinition(
+            name = "Query plan cache",
+            description = "Whether to cache the cost estimates and plans of the query indexes per normalized "
+                    + "statement, bind values and sort order, shared by all sessions. The cache is dropped when the "
+                    + "index definitions below /oak:index change. Changes to index definitions nested in the content, "
+                    + "e.g. /content/oak:index/foo, are not tracked; they only take effect for cached queries after "
+                    + "the maximum age.")
+    boolean oak_query_planCache_enabled() default false;
+
+    @AttributeDefinition(
+            name = "Query plan cache size",
+            description = "Maximum number of cached cost estimates and plans, each index counting separately")
+    int oak_query_planCache_maxEntries() default 1000;
+
+    @AttributeDefinition(
+            name = "Query plan cache maximum age",
+            description = "Time in milliseconds after which cached cost estimates and plans expire, to take the "
+                    + "growth of the indexed content into account")
+    long oak_query_planCache_maxAge() default 60000;
+
+    @AttributeDefinition(
+            name = "Async indexing lanes",
+            description = "Async indexing lanes as 'name:interval', with the interval in seconds between two runs of "
+                    + "the lane. Index definitions are assigned to a lane with their 'async' property, e.g. a "
+                    + "'fulltext-async' lane keeps slow full-text indexing from delaying the default 'async' lane.")
+    String[] oak_async_indexing_lanes() default {"async:5"};
+
+    @AttributeDefinition(
+            name = "Service session pool",
+            description = "Whether service sessions should be pooled. Pooled sessions are refreshed when they are "
+                    + "handed out and returned to the pool on logout, unless they have pending changes, registered "
+                    + "event listeners or lock tokens. Nodes and properties obtained from a pooled session stay bound "
+                    + "to it after logout, so changes made through them would act on the session of the next "
+                    + "borrower: callers must not use them after logging out.")
+    boolean oak_session_pool_enabled() default false;
+
+    @AttributeDefinition(
+            name = "Service session pool size",
+            description = "Maximum number of idle sessions kept in the service session pool")
+    int oak_session_pool_maxIdle() default 64;
+
+    @AttributeDefinition(
+            name = "Service session pool size per service",
+            description = "Maximum number of idle sessions kept in the service session pool for the same "
+                    + "service principals and workspace")
+    int oak_session_pool_maxIdlePerKey() default 8;
+
+    @AttributeDefinition(
+            name = "Service session pool idle timeout",
+            description = "Time in seconds after which idle sessions are evicted from the service session pool")
+    long oak_session_pool_idleTimeout() default 60;
+
+    @AttributeDefinition(
+            name = "Service subject cache size",
+            description = "Maximum number of pre-built subjects for service principals kept for service logins. "
+                    + "The cache is cleared when the service user mappings change. A value of 0 disables the cache.")
+    int oak_session_subjectCache_size() default 100;
 }
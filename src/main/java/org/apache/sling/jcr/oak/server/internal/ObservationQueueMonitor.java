@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+import org.apache.jackrabbit.api.jmx.EventListenerMBean;
+import org.apache.jackrabbit.oak.spi.commit.BackgroundObserverMBean;
+import org.apache.jackrabbit.oak.stats.HistogramStats;
+import org.apache.jackrabbit.oak.stats.MeterStats;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Samples the observation queues of the event listeners, see {@link ObservationQueueStatsMBean}.
+ *
+ * <p>Oak registers the queue and the delivery statistics of each event listener as separate services, which share the
+ * {@value #LISTENER_ID} service property. A full queue makes Oak collapse further changes into a single external
+ * event, so the number of samples finding a queue full hints at lost event details.</p>
+ */
+class ObservationQueueMonitor implements ObservationQueueStatsMBean, Runnable {
+
+    static final String QUEUE_SIZE = "OAK_OBSERVATION_QUEUE_SIZE";
+
+    static final String QUEUE_FULL = "OAK_OBSERVATION_QUEUE_FULL";
+
+    private static final String LISTENER_ID = "listenerId";
+
+    private static final String[] ITEM_NAMES = {
+        "listenerId",
+        "className",
+        "maxQueueSize",
+        "queueSize",
+        "peakQueueSize",
+        "queueFullCount",
+        "localEventCount",
+        "externalEventCount",
+        "queueBacklogMillis",
+        "microsecondsPerEventDelivery"
+    };
+
+    private static final OpenType<?>[] ITEM_TYPES = {
+        SimpleType.STRING,
+        SimpleType.STRING,
+        SimpleType.INTEGER,
+        SimpleType.INTEGER,
+        SimpleType.INTEGER,
+        SimpleType.LONG,
+        SimpleType.INTEGER,
+        SimpleType.INTEGER,
+        SimpleType.LONG,
+        SimpleType.LONG
+    };
+
+    private final BundleContext bundleContext;
+
+    private final HistogramStats queueSize;
+
+    private final MeterStats queueFull;
+
+    private final ConcurrentMap<String, Peaks> peaks = new ConcurrentHashMap<>();
+
+    ObservationQueueMonitor(final BundleContext bundleContext, final StatisticsProvider statisticsProvider) {
+        this.bundleContext = bundleContext;
+        this.queueSize = statisticsProvider.getHistogram(QUEUE_SIZE, StatsOptions.METRICS_ONLY);
+        this.queueFull = statisticsProvider.getMeter(QUEUE_FULL, StatsOptions.METRICS_ONLY);
+    }
+
+    /**
+     * Samples the queue sizes, the peaks of listeners which are gone are dropped.
+     */
+    @Override
+    public void run() {
+        final Set<String> listenerIds = new HashSet<>();
+        forEach(BackgroundObserverMBean.class, (listenerId, observer) -> {
+            listenerIds.add(listenerId);
+            final int size = observer.getQueueSize();
+            final boolean full = size >= observer.getMaxQueueSize();
+            queueSize.update(size);
+            if (full) {
+                queueFull.mark();
+            }
+            peaks.computeIfAbsent(listenerId, id -> new Peaks()).update(size, full);
+        });
+        peaks.keySet().retainAll(listenerIds);
+    }
+
+    @Override
+    public TabularData getListenerStats() {
+        final Map<String, EventListenerMBean> listeners = new HashMap<>();
+        forEach(EventListenerMBean.class, (listenerId, listener) -> listeners.put(listenerId, listener));
+        try {
+            final CompositeType rowType = new CompositeType(
+                    "ListenerStats", "Observation queue statistics", ITEM_NAMES, ITEM_NAMES, ITEM_TYPES);
+            final TabularType tableType = new TabularType(
+                    "ListenerStats", "Observation queue statistics per listener", rowType, new String[] {LISTENER_ID});
+            final TabularDataSupport table = new TabularDataSupport(tableType);
+            forEach(BackgroundObserverMBean.class, (listenerId, observer) -> {
+                final EventListenerMBean listener = listeners.get(listenerId);
+                final Peaks listenerPeaks = peaks.getOrDefault(listenerId, new Peaks());
+                final int size = observer.getQueueSize();
+                final Object[] values = {
+                    listenerId,
+                    listener != null ? listener.getClassName() : observer.getClassName(),
+                    observer.getMaxQueueSize(),
+                    size,
+                    Math.max(size, listenerPeaks.size),
+                    listenerPeaks.fullCount,
+                    observer.getLocalEventCount(),
+                    observer.getExternalEventCount(),
+                    listener != null ? listener.getQueueBacklogMillis() : -1L,
+                    listener != null ? listener.getMicrosecondsPerEventDelivery() : -1L
+                };
+                try {
+                    table.put(new CompositeDataSupport(rowType, ITEM_NAMES, values));
+                } catch (OpenDataException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            return table;
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Calls the consumer with each service of the given type registered for an event listener.
+     */
+    private <T> void forEach(final Class<T> type, final BiConsumer<String, T> consumer) {
+        final Collection<ServiceReference<T>> references;
+        try {
+            references = bundleContext.getServiceReferences(type, "(" + LISTENER_ID + "=*)");
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        for (ServiceReference<T> reference : references) {
+            final T service = bundleContext.getService(reference);
+            if (service != null) {
+                try {
+                    consumer.accept(String.valueOf(reference.getProperty(LISTENER_ID)), service);
+                } finally {
+                    bundleContext.ungetService(reference);
+                }
+            }
+        }
+    }
+
+    private static final class Peaks {
+
+        private volatile int size;
+
+        private volatile long fullCount;
+
+        private synchronized void update(final int size, final boolean full) {
+            this.size = Math.max(this.size, size);
+            if (full) {
+                fullCount++;
+            }
+        }
+    }
+}
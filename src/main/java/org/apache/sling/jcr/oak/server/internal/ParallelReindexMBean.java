@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+/**
+ * Reindexes a synchronous property index by traversing the content in parallel.
+ */
+public interface ParallelReindexMBean {
+
+    String TYPE = "ParallelReindex";
+
+    /**
+     * Starts reindexing the index with the given name below {@code /oak:index}.
+     *
+     * @param threads the number of threads traversing the content, 0 for the number of processors
+     * @return a message telling whether the reindex started
+     */
+    String startReindex(String indexName, int threads);
+
+    /**
+     * The state of the current or last reindex, e.g. {@code running} or {@code failed: ...}.
+     */
+    String getStatus();
+
+    String getIndexName();
+
+    int getPartitions();
+
+    int getCompletedPartitions();
+
+    long getProcessedNodes();
+
+    long getNodesPerSecond();
+
+    /**
+     * The remaining time of the current reindex in seconds, extrapolated from the completed partitions, or -1 if not
+     * known.
+     */
+    long getEstimatedRemainingSeconds();
+}
@@ -0,0 +1,490 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.plugins.index.IndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.IndexUpdateCallback;
+import org.apache.jackrabbit.oak.plugins.index.property.PropertyIndexEditorProvider;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.commit.EditorDiff;
+import org.apache.jackrabbit.oak.spi.commit.VisibleEditor;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.stats.MeterStats;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.apache.jackrabbit.oak.stats.TimerStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.UNIQUE_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * Reindexes synchronous property indexes by partitioning the content tree by path and indexing the partitions in
+ * parallel, see {@link ParallelReindexMBean}.
+ *
+ * <p>The partitions are the subtrees at {@value #SPLIT_DEPTH} levels below the root, indexed on a snapshot of the
+ * repository. Each partition is indexed into a copy of the index definition, and the index contents of the copies are
+ * merged into the definition in a commit hook, which then indexes the changes committed since the snapshot. Lucene
+ * indexes store their content as Lucene segments, which cannot be merged like this, and are reindexed by their async
+ * lane instead. Unique indexes cannot be checked for duplicates across partitions and async property indexes are
+ * maintained by their lane, so both are not supported either.</p>
+ */
+class ParallelReindexer implements ParallelReindexMBean {
+
+    static final String REINDEX_NODES = "OAK_PARALLEL_REINDEX_NODES";
+
+    static final String REINDEX_DURATION = "OAK_PARALLEL_REINDEX_DURATION";
+
+    private static final int SPLIT_DEPTH = 2;
+
+    /**
+     * Number of partition groups per thread, to balance differently sized partitions.
+     */
+    private static final int GROUPS_PER_THREAD = 4;
+
+    private final Logger logger = LoggerFactory.getLogger(ParallelReindexer.class);
+
+    private final NodeStore nodeStore;
+
+    private final IndexEditorProvider indexEditorProvider;
+
+    private final MeterStats reindexNodes;
+
+    private final TimerStats reindexDuration;
+
+    private final AtomicInteger partitions = new AtomicInteger();
+
+    private final AtomicInteger completedPartitions = new AtomicInteger();
+
+    private final AtomicLong processedNodes = new AtomicLong();
+
+    private volatile String indexName;
+
+    private volatile String status = "idle";
+
+    private volatile long started;
+
+    private volatile long finished;
+
+    private ExecutorService workers;
+
+    private boolean closed;
+
+    ParallelReindexer(
+            final NodeStore nodeStore,
+            final IndexEditorProvider indexEditorProvider,
+            final StatisticsProvider statisticsProvider) {
+        this.nodeStore = nodeStore;
+        this.indexEditorProvider = indexEditorProvider;
+        this.reindexNodes = statisticsProvider.getMeter(REINDEX_NODES, StatsOptions.METRICS_ONLY);
+        this.reindexDuration = statisticsProvider.getTimer(REINDEX_DURATION, StatsOptions.METRICS_ONLY);
+    }
+
+    @Override
+    public synchronized String startReindex(final String indexName, final int threads) {
+        if (closed) {
+            return "the repository is shut down";
+        }
+        if (workers != null) {
+            return "already reindexing " + this.indexName;
+        }
+        final NodeState definition =
+                nodeStore.getRoot().getChildNode(INDEX_DEFINITIONS_NAME).getChildNode(indexName);
+        final String unsupported = checkSupported(definition);
+        if (unsupported != null) {
+            return "cannot reindex " + indexName + ": " + unsupported;
+        }
+
+        this.indexName = indexName;
+        this.status = "running";
+        this.started = System.nanoTime();
+        this.finished = 0;
+        partitions.set(0);
+        completedPartitions.set(0);
+        processedNodes.set(0);
+        final int workerCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        workers = Executors.newFixedThreadPool(workerCount, threadFactory());
+        final Thread coordinator = new Thread(() -> reindex(indexName, workerCount), "oak-parallel-reindex");
+        coordinator.setDaemon(true);
+        coordinator.start();
+        return "reindexing " + indexName + " with " + workerCount + " threads";
+    }
+
+    /**
+     * Aborts a running reindex.
+     */
+    synchronized void close() {
+        closed = true;
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    @Override
+    public String getStatus() {
+        return status;
+    }
+
+    @Override
+    public String getIndexName() {
+        return indexName;
+    }
+
+    @Override
+    public int getPartitions() {
+        return partitions.get();
+    }
+
+    @Override
+    public int getCompletedPartitions() {
+        return completedPartitions.get();
+    }
+
+    @Override
+    public long getProcessedNodes() {
+        return processedNodes.get();
+    }
+
+    @Override
+    public long getNodesPerSecond() {
+        final long elapsed = (finished != 0 ? finished : System.nanoTime()) - started;
+        final long seconds = TimeUnit.NANOSECONDS.toSeconds(elapsed);
+        return started == 0 || seconds == 0 ? 0 : processedNodes.get() / seconds;
+    }
+
+    @Override
+    public long getEstimatedRemainingSeconds() {
+        final int total = partitions.get();
+        final int completed = completedPartitions.get();
+        if (finished != 0 || total == 0 || completed == 0) {
+            return finished != 0 ? 0 : -1;
+        }
+        final long elapsed = System.nanoTime() - started;
+        return TimeUnit.NANOSECONDS.toSeconds(elapsed / completed * (total - completed));
+    }
+
+    private void reindex(final String indexName, final int workerCount) {
+        try {
+            final NodeState snapshot = nodeStore.getRoot();
+            final List<List<String>> groups = partition(snapshot, workerCount * GROUPS_PER_THREAD);
+            partitions.set(groups.size());
+            logger.info("reindexing {} in {} partitions with {} threads", indexName, groups.size(), workerCount);
+
+            final NodeState definition = snapshot.getChildNode(INDEX_DEFINITIONS_NAME).getChildNode(indexName);
+            final List<Future<NodeState>> results = new ArrayList<>();
+            for (List<String> group : groups) {
+                results.add(workers.submit(() -> indexPartition(definition, snapshot, group)));
+            }
+            final List<NodeState> indexContents = new ArrayList<>();
+            for (Future<NodeState> result : results) {
+                indexContents.add(result.get());
+                completedPartitions.incrementAndGet();
+            }
+
+            nodeStore.merge(
+                    nodeStore.getRoot().builder(),
+                    (before, after, info) -> apply(after, snapshot, indexName, indexContents),
+                    CommitInfo.EMPTY);
+            finished = System.nanoTime();
+            reindexDuration.update(finished - started, TimeUnit.NANOSECONDS);
+            status = "done";
+            logger.info(
+                    "reindexed {} in {} s, {} nodes",
+                    indexName,
+                    TimeUnit.NANOSECONDS.toSeconds(finished - started),
+                    processedNodes.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = "aborted";
+        } catch (Exception e) {
+            logger.error("reindexing {} failed", indexName, e);
+            status = "failed: " + e;
+        } finally {
+            if (finished == 0) {
+                finished = System.nanoTime();
+            }
+            synchronized (this) {
+                workers.shutdown();
+                workers = null;
+            }
+        }
+    }
+
+    /**
+     * Indexes the subtrees at the given paths into a copy of the index definition. The editor gets the whole snapshot
+     * as root, so that it finds the node types of the declaring node types, and only the partition is diffed.
+     *
+     * @return the copy of the index definition with the index content
+     */
+    private NodeState indexPartition(final NodeState definition, final NodeState snapshot, final List<String> paths)
+            throws CommitFailedException {
+        final NodeBuilder root = EMPTY_NODE.builder();
+        for (String path : paths) {
+            if (path == null) {
+                // the nodes above the split depth, without their children at the split depth
+                copyShallow(snapshot, root, 0);
+                continue;
+            }
+            NodeBuilder parent = root;
+            for (String name : PathUtils.elements(PathUtils.getParentPath(path))) {
+                parent = parent.child(name);
+            }
+            parent.setChildNode(PathUtils.getName(path), getNode(snapshot, path));
+        }
+        final NodeState partition = root.getNodeState();
+
+        final NodeBuilder indexDefinition = withoutIndexContent(definition).builder();
+        final Editor editor = indexEditorProvider.getIndexEditor(
+                definition.getString(TYPE_PROPERTY_NAME), indexDefinition, snapshot, IndexUpdateCallback.NOOP);
+        final CommitFailedException failure =
+                EditorDiff.process(VisibleEditor.wrap(new CountingEditor(editor)), EMPTY_NODE, partition);
+        if (failure != null) {
+            throw failure;
+        }
+        return indexDefinition.getNodeState();
+    }
+
+    /**
+     * Replaces the index content with the merged contents of the partitions and indexes the changes committed since
+     * the snapshot.
+     */
+    private NodeState apply(
+            final NodeState root, final NodeState snapshot, final String indexName, final List<NodeState> indexContents)
+            throws CommitFailedException {
+        final NodeBuilder builder = root.builder();
+        final NodeBuilder definition = builder.child(INDEX_DEFINITIONS_NAME).child(indexName);
+        final String unsupported = checkSupported(definition.getNodeState());
+        if (unsupported != null) {
+            throw new CommitFailedException(
+                    CommitFailedException.OAK, 3, "Cannot reindex " + indexName + ": " + unsupported);
+        }
+        for (String name : definition.getChildNodeNames()) {
+            if (isIndexContent(name)) {
+                definition.getChildNode(name).remove();
+            }
+        }
+        for (NodeState indexContent : indexContents) {
+            for (ChildNodeEntry child : indexContent.getChildNodeEntries()) {
+                if (isIndexContent(child.getName())) {
+                    merge(definition.child(child.getName()), child.getNodeState());
+                }
+            }
+        }
+        final Editor editor = indexEditorProvider.getIndexEditor(
+                definition.getString(TYPE_PROPERTY_NAME), definition, root, IndexUpdateCallback.NOOP);
+        final CommitFailedException failure = EditorDiff.process(VisibleEditor.wrap(editor), snapshot, root);
+        if (failure != null) {
+            throw failure;
+        }
+        definition.setProperty(REINDEX_PROPERTY_NAME, false);
+        return builder.getNodeState();
+    }
+
+    /**
+     * Splits the content into the given number of groups of partitions. One group contains {@code null} for the
+     * nodes above the split depth.
+     */
+    private static List<List<String>> partition(final NodeState root, final int groupCount) {
+        final List<String> paths = new ArrayList<>();
+        collectPartitions(root, "/", 0, paths);
+        final List<List<String>> groups = new ArrayList<>();
+        final int groupSize = Math.max(1, (paths.size() + groupCount - 1) / groupCount);
+        for (int i = 0; i < paths.size(); i += groupSize) {
+            groups.add(new ArrayList<>(paths.subList(i, Math.min(paths.size(), i + groupSize))));
+        }
+        if (groups.isEmpty()) {
+            groups.add(new ArrayList<>());
+        }
+        groups.get(0).add(null);
+        return groups;
+    }
+
+    private static void collectPartitions(
+            final NodeState node, final String path, final int depth, final List<String> paths) {
+        for (ChildNodeEntry child : node.getChildNodeEntries()) {
+            if (child.getName().startsWith(":")) {
+                continue;
+            }
+            final String childPath = PathUtils.concat(path, child.getName());
+            if (depth + 1 == SPLIT_DEPTH) {
+                paths.add(childPath);
+            } else {
+                collectPartitions(child.getNodeState(), childPath, depth + 1, paths);
+            }
+        }
+    }
+
+    private static void copyShallow(final NodeState node, final NodeBuilder builder, final int depth) {
+        for (PropertyState property : node.getProperties()) {
+            builder.setProperty(property);
+        }
+        if (depth + 1 < SPLIT_DEPTH) {
+            for (ChildNodeEntry child : node.getChildNodeEntries()) {
+                if (!child.getName().startsWith(":")) {
+                    copyShallow(child.getNodeState(), builder.child(child.getName()), depth + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the source into the builder, both partitions may have added the same nodes.
+     */
+    private static void merge(final NodeBuilder builder, final NodeState source) {
+        for (PropertyState property : source.getProperties()) {
+            builder.setProperty(property);
+        }
+        for (ChildNodeEntry child : source.getChildNodeEntries()) {
+            if (builder.hasChildNode(child.getName())) {
+                merge(builder.child(child.getName()), child.getNodeState());
+            } else {
+                builder.setChildNode(child.getName(), child.getNodeState());
+            }
+        }
+    }
+
+    private static NodeState withoutIndexContent(final NodeState definition) {
+        final NodeBuilder builder = definition.builder();
+        for (String name : definition.getChildNodeNames()) {
+            if (isIndexContent(name)) {
+                builder.getChildNode(name).remove();
+            }
+        }
+        return builder.getNodeState();
+    }
+
+    private static NodeState getNode(final NodeState root, final String path) {
+        NodeState node = root;
+        for (String name : PathUtils.elements(path)) {
+            node = node.getChildNode(name);
+        }
+        return node;
+    }
+
+    private static boolean isIndexContent(final String name) {
+        return name.startsWith(":");
+    }
+
+    private static String checkSupported(final NodeState definition) {
+        if (!definition.exists()) {
+            return "no such index";
+        }
+        if (!PropertyIndexEditorProvider.TYPE.equals(definition.getString(TYPE_PROPERTY_NAME))) {
+            return "only property indexes are supported, set reindex to true to reindex other indexes on their lane";
+        }
+        if (definition.getBoolean(UNIQUE_PROPERTY_NAME)) {
+            return "unique indexes are not supported";
+        }
+        if (definition.hasProperty(ASYNC_PROPERTY_NAME)) {
+            return "async indexes are not supported, set reindex to true to reindex them on their lane";
+        }
+        return null;
+    }
+
+    private static ThreadFactory threadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "oak-parallel-reindex-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Counts the traversed nodes.
+     */
+    private final class CountingEditor implements Editor {
+
+        private final Editor editor;
+
+        private CountingEditor(final Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        public void enter(final NodeState before, final NodeState after) throws CommitFailedException {
+            processedNodes.incrementAndGet();
+            reindexNodes.mark();
+            editor.enter(before, after);
+        }
+
+        @Override
+        public void leave(final NodeState before, final NodeState after) throws CommitFailedException {
+            editor.leave(before, after);
+        }
+
+        @Override
+        public void propertyAdded(final PropertyState after) throws CommitFailedException {
+            editor.propertyAdded(after);
+        }
+
+        @Override
+        public void propertyChanged(final PropertyState before, final PropertyState after)
+                throws CommitFailedException {
+            editor.propertyChanged(before, after);
+        }
+
+        @Override
+        public void propertyDeleted(final PropertyState before) throws CommitFailedException {
+            editor.propertyDeleted(before);
+        }
+
+        @Override
+        public Editor childNodeAdded(final String name, final NodeState after) throws CommitFailedException {
+            return wrap(editor.childNodeAdded(name, after));
+        }
+
+        @Override
+        public Editor childNodeChanged(final String name, final NodeState before, final NodeState after)
+                throws CommitFailedException {
+            return wrap(editor.childNodeChanged(name, before, after));
+        }
+
+        @Override
+        public Editor childNodeDeleted(final String name, final NodeState before) throws CommitFailedException {
+            return wrap(editor.childNodeDeleted(name, before));
+        }
+
+        private Editor wrap(final Editor child) {
+            return child != null ? new CountingEditor(child) : null;
+        }
+    }
+}
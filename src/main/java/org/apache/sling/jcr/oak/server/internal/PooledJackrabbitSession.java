@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+
+/**
+ * A handle on a session borrowed from a {@link ServiceSessionPool}. Logging out the handle returns the session to the
+ * pool; any further use of the handle fails. The items obtained through the handle are not bound to it, see
+ * {@link ServiceSessionPool}.
+ */
+class PooledJackrabbitSession extends TcclWrappingJackrabbitSession {
+
+    private final ServiceSessionPool pool;
+
+    private final ServiceSessionPool.Key key;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    PooledJackrabbitSession(
+            final ServiceSessionPool pool, final ServiceSessionPool.Key key, final JackrabbitSession session) {
+        super(session);
+        this.pool = pool;
+        this.key = key;
+    }
+
+    @Override
+    protected JackrabbitSession getWrapped() {
+        if (released.get()) {
+            throw new IllegalStateException("This session has been logged out.");
+        }
+        return super.getWrapped();
+    }
+
+    @Override
+    public boolean isLive() {
+        return !released.get() && super.getWrapped().isLive();
+    }
+
+    @Override
+    public void logout() {
+        if (released.compareAndSet(false, true)) {
+            pool.release(key, super.getWrapped());
+        }
+    }
+}
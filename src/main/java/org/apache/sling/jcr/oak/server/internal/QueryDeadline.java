@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.api.Result.SizePrecision;
+import org.apache.jackrabbit.oak.spi.query.Cursor;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
+
+/**
+ * The time by which the query run by the current thread has to finish. Oak evaluates queries lazily in the thread
+ * iterating the result, so the deadline is made current while the query is executed and its result is read. It is
+ * checked cooperatively between the rows of the result and the entries of the index cursors, which stop the query
+ * with a {@link QueryTimeoutException} once the deadline passed.
+ */
+final class QueryDeadline {
+
+    private static final ThreadLocal<QueryDeadline> CURRENT = new ThreadLocal<>();
+
+    private final long timeout;
+
+    private final long deadline;
+
+    /**
+     * @param timeout time in ms from now
+     */
+    QueryDeadline(final long timeout) {
+        this.timeout = timeout;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Returns the timeout in ms the deadline was created with.
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Makes this the deadline of the current thread.
+     *
+     * @return the previous deadline of the current thread, to be restored with {@link #exit(QueryDeadline)}
+     */
+    QueryDeadline enter() {
+        final QueryDeadline previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    static void exit(final QueryDeadline previous) {
+        if (previous != null) {
+            CURRENT.set(previous);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    void check() {
+        if (System.nanoTime() - deadline > 0) {
+            throw new QueryTimeoutException(timeout);
+        }
+    }
+
+    private static void checkCurrent() {
+        final QueryDeadline current = CURRENT.get();
+        if (current != null) {
+            current.check();
+        }
+    }
+
+    /**
+     * Returns a cursor checking the deadline of the thread reading it.
+     */
+    static Cursor bound(final Cursor cursor) {
+        return new Cursor() {
+
+            @Override
+            public boolean hasNext() {
+                checkCurrent();
+                return cursor.hasNext();
+            }
+
+            @Override
+            public IndexRow next() {
+                checkCurrent();
+                return cursor.next();
+            }
+
+            @Override
+            public long getSize(final SizePrecision precision, final long max) {
+                return cursor.getSize(precision, max);
+            }
+        };
+    }
+
+    /**
+     * Whether the exception or one of its causes is a {@link QueryTimeoutException}.
+     */
+    static boolean isTimeout(final Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof QueryTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops a query like Oak stops queries exceeding its read limits.
+     */
+    static final class QueryTimeoutException extends UnsupportedOperationException {
+
+        private static final long serialVersionUID = 1L;
+
+        private QueryTimeoutException(final long timeout) {
+            super("The query ran longer than " + timeout + " ms, processing was stopped.");
+        }
+    }
+}
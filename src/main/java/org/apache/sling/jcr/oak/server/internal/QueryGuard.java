@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.stats.MeterStats;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the queries Oak rejects for traversing the repository or for reading more nodes than its limits allow, and
+ * runs traversal queries restricted to exempt paths anyway. It also sets the deadline of queries and counts the
+ * queries stopped as they passed it, see {@link QueryDeadline}.
+ *
+ * <p>Oak fails traversal queries before executing them. A rejected query is explained with traversal allowed; if
+ * each traversal in its plan is restricted to an exempt path, the query is run again with the
+ * {@code traversal ok} option. Statements with options of their own are not exempted.</p>
+ */
+class QueryGuard {
+
+    static final String TRAVERSAL_QUERIES = "OAK_QUERY_TRAVERSAL";
+
+    static final String REJECTED_QUERIES = "OAK_QUERY_REJECTED";
+
+    static final String TIMED_OUT_QUERIES = "OAK_QUERY_TIMEOUTS";
+
+    /*
+     * Oak does not tell traversal and limit failures apart by type, so they are recognized by the texts of Oak 1.56.0,
+     * see QueryImpl and FilterIterators, and the traversals by the plan of TraversingIndex. QueryGuardTest fails if
+     * Oak changes them.
+     */
+
+    /**
+     * Start of the message of the exception Oak fails traversal queries with.
+     */
+    static final String TRAVERSAL_MESSAGE = "Traversal query";
+
+    /**
+     * Start of the message of the exception Oak stops reading results exceeding the read or in-memory limit with.
+     */
+    static final String LIMIT_EXCEEDED_MESSAGE = "The query read";
+
+    /**
+     * Traversal in a query plan, e.g. {@code /* traverse "/content//*"}, with the traversed path as group.
+     */
+    static final Pattern TRAVERSAL = Pattern.compile("/\\* traverse \"([^\"]*)\"");
+
+    private static final String TRAVERSAL_OK = " option(traversal ok)";
+
+    private static final Pattern OPTION = Pattern.compile("(?i)\\boption\\s*\\(");
+
+    private final Logger logger = LoggerFactory.getLogger(QueryGuard.class);
+
+    private final List<String> exemptPaths = new ArrayList<>();
+
+    private final MeterStats traversalQueries;
+
+    private final MeterStats rejectedQueries;
+
+    private final MeterStats timedOutQueries;
+
+    private final long timeout;
+
+    /**
+     * @param exemptPaths paths below which queries may traverse the repository
+     * @param timeout     default timeout of queries in ms, 0 for none
+     */
+    QueryGuard(final String[] exemptPaths, final long timeout, final StatisticsProvider statisticsProvider) {
+        for (String path : exemptPaths) {
+            final String trimmed = path.trim();
+            if (PathUtils.isAbsolute(trimmed) && PathUtils.isValid(trimmed)) {
+                this.exemptPaths.add(trimmed);
+            } else if (!trimmed.isEmpty()) {
+                logger.warn("ignoring invalid traversal exempt path {}", path);
+            }
+        }
+        this.traversalQueries = statisticsProvider.getMeter(TRAVERSAL_QUERIES, StatsOptions.METRICS_ONLY);
+        this.rejectedQueries = statisticsProvider.getMeter(REJECTED_QUERIES, StatsOptions.METRICS_ONLY);
+        this.timedOutQueries = statisticsProvider.getMeter(TIMED_OUT_QUERIES, StatsOptions.METRICS_ONLY);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the deadline of a query starting now, or {@code null} if it may run indefinitely. A query may shorten
+     * the default timeout, but not extend or disable it.
+     *
+     * @param timeout timeout of the query in ms, 0 or less for the default timeout
+     */
+    QueryDeadline deadline(final long timeout) {
+        final long effective;
+        if (timeout <= 0) {
+            effective = this.timeout;
+        } else {
+            effective = this.timeout > 0 ? Math.min(timeout, this.timeout) : timeout;
+        }
+        return effective > 0 ? new QueryDeadline(effective) : null;
+    }
+
+    /**
+     * Handles a query Oak refused to execute: returns the result of the query if it is exempt from the traversal
+     * check, otherwise rethrows the exception.
+     */
+    QueryResult rejected(final InstrumentedQuery query, final InvalidQueryException e) throws RepositoryException {
+        if (!isTraversalRejected(e)) {
+            throw e;
+        }
+        traversalQueries.mark();
+        if (isExempt(query)) {
+            return query.prepare(query.getStatement() + TRAVERSAL_OK).execute();
+        }
+        rejectedQueries.mark();
+        throw e;
+    }
+
+    /**
+     * Counts a query whose result Oak stopped reading as it exceeded a limit.
+     */
+    void limitExceeded() {
+        rejectedQueries.mark();
+    }
+
+    /**
+     * Counts a query stopped as it passed its deadline.
+     */
+    void timedOut() {
+        timedOutQueries.mark();
+    }
+
+    private boolean isExempt(final InstrumentedQuery query) throws RepositoryException {
+        final String statement = query.getStatement();
+        if (exemptPaths.isEmpty() || OPTION.matcher(statement).find()) {
+            return false;
+        }
+        final RowIterator rows = query.prepare("explain " + statement + TRAVERSAL_OK)
+                .execute()
+                .getRows();
+        if (!rows.hasNext()) {
+            return false;
+        }
+        final Row row = rows.nextRow();
+        final Matcher traversal = TRAVERSAL.matcher(row.getValue("plan").getString());
+        boolean traverses = false;
+        while (traversal.find()) {
+            traverses = true;
+            if (!isExempt(traversal.group(1))) {
+                return false;
+            }
+        }
+        return traverses;
+    }
+
+    /**
+     * Whether the traversal, e.g. {@code /content//*} for the descendants of {@code /content} or {@code *} for the
+     * whole repository, stays below an exempt path.
+     */
+    private boolean isExempt(final String traversal) {
+        String path = traversal;
+        if (path.endsWith("//*")) {
+            path = path.substring(0, path.length() - "//*".length());
+        } else if (path.endsWith("/*")) {
+            path = path.substring(0, path.length() - "/*".length());
+        }
+        if (path.isEmpty() || "*".equals(path)) {
+            path = "/";
+        }
+        for (String exemptPath : exemptPaths) {
+            if (exemptPath.equals(path) || PathUtils.isAncestor(exemptPath, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isTraversalRejected(final InvalidQueryException e) {
+        final Throwable cause = e.getCause();
+        return cause instanceof IllegalArgumentException
+                && cause.getMessage() != null
+                && cause.getMessage().startsWith(TRAVERSAL_MESSAGE);
+    }
+
+    /**
+     * Whether Oak stopped reading a query result for exceeding its read or in-memory limit.
+     */
+    static boolean isLimitExceeded(final RuntimeException e) {
+        return e instanceof UnsupportedOperationException
+                && e.getMessage() != null
+                && e.getMessage().startsWith(LIMIT_EXCEEDED_MESSAGE);
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.plugins.nodetype.TypePredicate;
+import org.apache.jackrabbit.oak.spi.nodetype.NodeTypeConstants;
+import org.apache.jackrabbit.oak.spi.commit.CommitContext;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.observation.ChangeSet;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.stats.CounterStats;
+import org.apache.jackrabbit.oak.stats.MeterStats;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.apache.jackrabbit.value.ValueFactoryImpl;
+
+/**
+ * Caches the results of queries by statement, bind values, limit, offset and the principals of the session, and
+ * invalidates them as the content they depend on changes.
+ *
+ * <p>The dependencies of a query are taken from its statement: the names it mentions, which cover the properties and
+ * node types it filters, orders and selects on, and the path it is restricted to. A change invalidates the results
+ * whose dependencies it touches, according to the {@link ChangeSet} Oak's {@code ChangeCollectorProvider} collects
+ * for each commit. Commits without a change set, e.g. external ones, and changes to access control content or group
+ * memberships invalidate all results. Fulltext queries depend on all properties.</p>
+ *
+ * <p>The cache never refreshes sessions. A result is cached with the revision of the session it was computed for, the
+ * number of changes observed before that session was logged in, refreshed or saved, and it is only served to
+ * sessions at the same or a later revision. Sessions with pending changes bypass the cache. Since asynchronous
+ * indexes lag behind the content, a result is not cached if a change it depends on happened after that revision or
+ * within the async index delay before.</p>
+ */
+class QueryResultCache implements Observer {
+
+    static final String HITS = "OAK_QUERY_CACHE_HITS";
+
+    static final String MISSES = "OAK_QUERY_CACHE_MISSES";
+
+    static final String INVALIDATIONS = "OAK_QUERY_CACHE_INVALIDATIONS";
+
+    static final String SIZE = "OAK_QUERY_CACHE_SIZE";
+
+    /**
+     * Maximum number of changes remembered to decide whether a result may be cached.
+     */
+    private static final int MAX_CHANGES = 10000;
+
+    /**
+     * Node types of access control content and group memberships, which change the results of all queries.
+     */
+    private static final Set<String> SECURITY_NODE_TYPES = new HashSet<>(Arrays.asList(
+            "rep:ACL",
+            "rep:ACE",
+            "rep:GrantACE",
+            "rep:DenyACE",
+            "rep:Restrictions",
+            "rep:CugPolicy",
+            "rep:PrincipalPolicy",
+            "rep:PrincipalEntry",
+            "rep:Group",
+            "rep:MemberRefs",
+            "rep:MemberRefsList"));
+
+    private static final Set<String> SECURITY_PROPERTY_NAMES =
+            new HashSet<>(Arrays.asList("rep:members", "rep:principalNames"));
+
+    private static final Set<String> STRUCTURAL_PROPERTY_NAMES =
+            new HashSet<>(Arrays.asList(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.JCR_MIXINTYPES));
+
+    /**
+     * The result of a query with more rows than cached per entry or with binary values.
+     */
+    private static final CachedEntry UNCACHEABLE = new CachedEntry(null, null, null, 0);
+
+    private final int maxRows;
+
+    private final long asyncIndexDelay;
+
+    private final MeterStats hits;
+
+    private final MeterStats misses;
+
+    private final MeterStats invalidations;
+
+    private final CounterStats size;
+
+    private final Map<Key, CachedEntry> entries;
+
+    private final Deque<Change> changes = new ArrayDeque<>();
+
+    private long sequence;
+
+    private NodeState root;
+
+    /**
+     * @param maxEntries      maximum number of cached results, the least recently used are evicted
+     * @param maxRows         maximum number of rows of a cached result
+     * @param asyncIndexDelay time in ms after a change during which the results depending on it are not cached
+     */
+    QueryResultCache(
+            final int maxEntries,
+            final int maxRows,
+            final long asyncIndexDelay,
+            final StatisticsProvider statisticsProvider) {
+        this.maxRows = maxRows;
+        this.asyncIndexDelay = TimeUnit.MILLISECONDS.toNanos(asyncIndexDelay);
+        this.hits = statisticsProvider.getMeter(HITS, StatsOptions.METRICS_ONLY);
+        this.misses = statisticsProvider.getMeter(MISSES, StatsOptions.METRICS_ONLY);
+        this.invalidations = statisticsProvider.getMeter(INVALIDATIONS, StatsOptions.METRICS_ONLY);
+        this.size = statisticsProvider.getCounterStats(SIZE, StatsOptions.METRICS_ONLY);
+        this.entries = new LinkedHashMap<Key, CachedEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, CachedEntry> eldest) {
+                if (size() > maxEntries) {
+                    size.dec();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of changes observed so far. A session logged in, refreshed or saved after this call sees at
+     * least the content of this revision.
+     */
+    synchronized long getRevision() {
+        return sequence;
+    }
+
+    /**
+     * Executes the query or returns its cached result.
+     *
+     * @param revision   the revision the session sees at least, see {@link #getRevision()}
+     * @param principals identifies the principals of the session, which determine the readable content
+     */
+    QueryResult execute(
+            final InstrumentedQuery query, final Session session, final long revision, final String principals)
+            throws RepositoryException {
+        final Key key = Key.of(query, principals);
+        if (key == null || session.hasPendingChanges()) {
+            return query.getWrapped().execute();
+        }
+
+        final CachedEntry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+        }
+        if (cached != null && cached != UNCACHEABLE && cached.revision <= revision) {
+            hits.mark();
+            return new CachedQueryResult(cached.columnNames, cached.selectorNames, cached.rows, null, session);
+        }
+        misses.mark();
+
+        final QueryResult result = query.getWrapped().execute();
+        if (cached == UNCACHEABLE) {
+            return result;
+        }
+        final String[] columnNames = result.getColumnNames();
+        final String[] selectorNames = result.getSelectorNames();
+        final RowIterator rows = result.getRows();
+        // the rows read are handed out along with the remaining ones, if the result turns out uncacheable
+        final List<Row> read = new ArrayList<>();
+        final List<Row> copies = new ArrayList<>();
+        boolean cacheable = true;
+        while (cacheable && rows.hasNext()) {
+            final Row row = rows.nextRow();
+            read.add(row);
+            final Row copy = read.size() <= maxRows ? copy(row, columnNames, selectorNames) : null;
+            if (copy != null) {
+                copies.add(copy);
+            } else {
+                cacheable = false;
+            }
+        }
+        final CachedEntry entry = cacheable
+                ? new CachedEntry(columnNames, selectorNames, Collections.unmodifiableList(copies), revision)
+                : UNCACHEABLE;
+        put(key, entry, revision);
+        return new CachedQueryResult(columnNames, selectorNames, read, rows, session);
+    }
+
+    /**
+     * Copies the row detached from the session, or returns {@code null} for rows with binary values.
+     */
+    private static Row copy(
+            final Row row, final String[] columnNames, final String[] selectorNames) throws RepositoryException {
+        final Value[] values = new Value[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            final Value value = row.getValue(columnNames[i]);
+            if (value != null && value.getType() == PropertyType.BINARY) {
+                return null;
+            }
+            values[i] = value != null
+                    ? ValueFactoryImpl.getInstance().createValue(value.getString(), value.getType())
+                    : null;
+        }
+        final String[] paths = new String[selectorNames.length];
+        final double[] scores = new double[selectorNames.length];
+        for (int i = 0; i < selectorNames.length; i++) {
+            paths[i] = row.getPath(selectorNames[i]);
+            scores[i] = row.getScore(selectorNames[i]);
+        }
+        return new CachedQueryResult.CachedRow(columnNames, selectorNames, values, paths, scores);
+    }
+
+    private synchronized void put(final Key key, final CachedEntry entry, final long started) {
+        final long now = System.nanoTime();
+        final long oldestKnown = changes.isEmpty() ? sequence + 1 : changes.peekFirst().sequence;
+        if (oldestKnown > started + 1) {
+            // some of the changes since the query started are not known anymore
+            return;
+        }
+        key.dependencies = new Dependencies(key.statement);
+        for (Iterator<Change> iterator = changes.descendingIterator(); iterator.hasNext(); ) {
+            final Change change = iterator.next();
+            if (change.sequence <= started && now - change.time > asyncIndexDelay) {
+                break;
+            }
+            if (key.dependencies.isAffectedBy(change.changeSet, root)) {
+                return;
+            }
+        }
+        if (entries.put(key, entry) == null) {
+            size.inc();
+        }
+    }
+
+    @Override
+    public synchronized void contentChanged(final NodeState root, final CommitInfo info) {
+        this.root = root;
+        final ChangeSet changeSet = getChangeSet(info);
+        final long now = System.nanoTime();
+        changes.addLast(new Change(++sequence, now, changeSet));
+        while (changes.size() > MAX_CHANGES || now - changes.peekFirst().time > asyncIndexDelay) {
+            changes.removeFirst();
+        }
+
+        if (changeSet == null || affectsSecurity(changeSet)) {
+            invalidations.mark(entries.size());
+            size.dec(entries.size());
+            entries.clear();
+            return;
+        }
+        for (Iterator<Key> iterator = entries.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().dependencies.isAffectedBy(changeSet, root)) {
+                iterator.remove();
+                invalidations.mark();
+                size.dec();
+            }
+        }
+    }
+
+    /**
+     * Drops all results.
+     */
+    synchronized void clear() {
+        size.dec(entries.size());
+        entries.clear();
+        changes.clear();
+        root = null;
+    }
+
+    private static ChangeSet getChangeSet(final CommitInfo info) {
+        if (info == null || info.isExternal()) {
+            return null;
+        }
+        final Object commitContext = info.getInfo().get(CommitContext.NAME);
+        if (commitContext instanceof CommitContext) {
+            final Object changeSet =
+                    ((CommitContext) commitContext).get(ChangeSet.COMMIT_CONTEXT_OBSERVATION_CHANGESET);
+            if (changeSet instanceof ChangeSet) {
+                return (ChangeSet) changeSet;
+            }
+        }
+        return null;
+    }
+
+    private static boolean affectsSecurity(final ChangeSet changeSet) {
+        return intersects(changeSet.getAllNodeTypes(), SECURITY_NODE_TYPES)
+                || intersects(changeSet.getPropertyNames(), SECURITY_PROPERTY_NAMES);
+    }
+
+    /**
+     * Whether the sets intersect, or the changed items were too many to be collected.
+     */
+    private static boolean intersects(final Set<String> changed, final Set<String> names) {
+        if (changed == null) {
+            return true;
+        }
+        for (String name : changed) {
+            if (names.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Change {
+
+        private final long sequence;
+
+        private final long time;
+
+        private final ChangeSet changeSet;
+
+        private Change(final long sequence, final long time, final ChangeSet changeSet) {
+            this.sequence = sequence;
+            this.time = time;
+            this.changeSet = changeSet;
+        }
+    }
+
+    private static final class CachedEntry {
+
+        private final String[] columnNames;
+
+        private final String[] selectorNames;
+
+        private final List<Row> rows;
+
+        /**
+         * The revision from which on the rows are the result.
+         */
+        private final long revision;
+
+        private CachedEntry(
+                final String[] columnNames, final String[] selectorNames, final List<Row> rows, final long revision) {
+            this.columnNames = columnNames;
+            this.selectorNames = selectorNames;
+            this.rows = rows;
+            this.revision = revision;
+        }
+    }
+
+    private static final class Key {
+
+        private final String principals;
+
+        private final String language;
+
+        private final String statement;
+
+        private final String bindings;
+
+        private final long limit;
+
+        private final long offset;
+
+        /**
+         * Set when the result is cached.
+         */
+        private Dependencies dependencies;
+
+        private Key(
+                final String principals,
+                final String language,
+                final String statement,
+                final String bindings,
+                final long limit,
+                final long offset) {
+            this.principals = principals;
+            this.language = language;
+            this.statement = statement;
+            this.bindings = bindings;
+            this.limit = limit;
+            this.offset = offset;
+        }
+
+        /**
+         * Returns the key of the query, or {@code null} if it cannot be cached.
+         */
+        private static Key of(final InstrumentedQuery query, final String principals) throws RepositoryException {
+            final String language = query.getLanguage();
+            if (!Query.JCR_SQL2.equals(language) && !isXPath(language)) {
+                return null;
+            }
+            final StringBuilder bindings = new StringBuilder();
+            for (Map.Entry<String, Value> binding : query.getBindings().entrySet()) {
+                final Value value = binding.getValue();
+                if (value.getType() == PropertyType.BINARY) {
+                    return null;
+                }
+                bindings.append(binding.getKey())
+                        .append('=')
+                        .append(PropertyType.nameFromValue(value.getType()))
+                        .append(':')
+                        .append(value.getString())
+                        .append('\n');
+            }
+            return new Key(
+                    principals,
+                    language,
+                    query.getStatement(),
+                    bindings.toString(),
+                    query.getLimit(),
+                    query.getOffset());
+        }
+
+        @SuppressWarnings("deprecation")
+        private static boolean isXPath(final String language) {
+            return Query.XPATH.equals(language);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return limit == other.limit
+                    && offset == other.offset
+                    && principals.equals(other.principals)
+                    && language.equals(other.language)
+                    && statement.equals(other.statement)
+                    && bindings.equals(other.bindings);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = principals.hashCode();
+            hash = hash * 31 + statement.hashCode();
+            hash = hash * 31 + bindings.hashCode();
+            hash = hash * 31 + Long.hashCode(limit);
+            return hash * 31 + Long.hashCode(offset);
+        }
+    }
+
+    /**
+     * The names and the path a query statement depends on.
+     */
+    static final class Dependencies {
+
+        private static final Pattern NAME = Pattern.compile("\\[([^\\]]+)\\]|[\\w:.-]+");
+
+        private static final Pattern SQL2_PATH_CONSTRAINT =
+                Pattern.compile("(?i)is(?:descendant|child|same)node\\s*\\(\\s*(?:\\[?[^,()]*\\]?\\s*,)?\\s*'([^']*)'");
+
+        private static final Pattern JOIN_OR_NOT = Pattern.compile("(?i)\\b(?:join|not)\\b");
+
+        private static final Pattern FULLTEXT =
+                Pattern.compile("(?i)(contains|native|similar|spellcheck|suggest)\\s*\\(|rep:excerpt");
+
+        private final Set<String> names = new HashSet<>();
+
+        private final boolean anyProperty;
+
+        private final String path;
+
+        private TypePredicate types;
+
+        private NodeState nodeTypes;
+
+        Dependencies(final String statement) {
+            final Matcher names = NAME.matcher(statement);
+            while (names.find()) {
+                if (names.group(1) == null) {
+                    this.names.add(names.group());
+                    continue;
+                }
+                // relative properties like [jcr:content/foo] change by their last name
+                for (String name : names.group(1).trim().split("/")) {
+                    this.names.add(name.startsWith("@") ? name.substring(1) : name);
+                }
+            }
+            this.anyProperty = FULLTEXT.matcher(statement).find();
+            this.path = getPath(statement);
+        }
+
+        /**
+         * The path all results are in, from a single path constraint of a SQL-2 statement without alternatives,
+         * joins and negations, or the path of an XPath statement.
+         */
+        private static String getPath(final String statement) {
+            final String lowerCase = statement.toLowerCase(Locale.ENGLISH);
+            if (lowerCase.contains(" or ") || lowerCase.contains("union") || statement.contains("|")) {
+                return "/";
+            }
+            if (statement.startsWith("/jcr:root/")) {
+                String path = "/";
+                for (String name : statement.substring("/jcr:root/".length()).split("/")) {
+                    if (name.isEmpty() || !name.matches("[\\w:.-]+") || name.contains("_x")) {
+                        break;
+                    }
+                    path = PathUtils.concat(path, name);
+                }
+                return path;
+            }
+            final Matcher constraint = SQL2_PATH_CONSTRAINT.matcher(statement);
+            if (constraint.find() && !JOIN_OR_NOT.matcher(statement).find()) {
+                final String path = constraint.group(1);
+                if (!constraint.find() && PathUtils.isAbsolute(path) && PathUtils.isValid(path)) {
+                    return path;
+                }
+            }
+            return "/";
+        }
+
+        /**
+         * Whether the change may change the result of the query, conservatively if the change set overflowed.
+         */
+        boolean isAffectedBy(final ChangeSet changeSet, final NodeState root) {
+            if (changeSet == null) {
+                return true;
+            }
+            if (!isAffectedPath(changeSet.getParentPaths())) {
+                return false;
+            }
+            if (anyProperty || intersects(changeSet.getPropertyNames(), names)) {
+                return true;
+            }
+            // nodes added, removed or retyped may change the result by their type alone
+            return intersects(changeSet.getPropertyNames(), STRUCTURAL_PROPERTY_NAMES)
+                    && isAffectedType(changeSet.getAllNodeTypes(), root);
+        }
+
+        private boolean isAffectedPath(final Set<String> paths) {
+            if (paths == null || PathUtils.denotesRoot(path)) {
+                return true;
+            }
+            for (String changed : paths) {
+                if (changed.equals(path)
+                        || PathUtils.isAncestor(changed, path)
+                        || PathUtils.isAncestor(path, changed)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Whether the changed node types are among the names of the query or their subtypes.
+         */
+        private boolean isAffectedType(final Set<String> changedTypes, final NodeState root) {
+            if (changedTypes == null || root == null) {
+                return true;
+            }
+            final NodeState nodeTypes = root.getChildNode(JcrConstants.JCR_SYSTEM)
+                    .getChildNode(NodeTypeConstants.JCR_NODE_TYPES);
+            if (types == null || !nodeTypes.equals(this.nodeTypes)) {
+                types = new TypePredicate(root, names);
+                this.nodeTypes = nodeTypes;
+            }
+            for (String nodeType : changedTypes) {
+                if (types.test(nodeType, Collections.emptySet())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
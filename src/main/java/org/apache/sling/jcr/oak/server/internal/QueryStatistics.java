@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.jackrabbit.oak.stats.HistogramStats;
+import org.apache.jackrabbit.oak.stats.MeterStats;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.apache.jackrabbit.oak.stats.TimerStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the latency and the number of rows of the queries run through instrumented sessions, see
+ * {@link QueryStatisticsMBean}.
+ *
+ * <p>Oak evaluates queries lazily while their results are iterated, so the latency of a query is the time spent in
+ * executing it and iterating its result, up to the end of the result or the logout of the session. The time the caller
+ * spends between fetching rows is not included. Queries taking at least the slow query threshold are logged with their
+ * plan, which is obtained by explaining the query again.</p>
+ */
+class QueryStatistics implements QueryStatisticsMBean {
+
+    static final String QUERY_DURATION = "OAK_QUERY_DURATION";
+
+    static final String QUERY_ROWS = "OAK_QUERY_ROWS";
+
+    static final String SLOW_QUERIES = "OAK_QUERY_SLOW";
+
+    private static final String[] ITEM_NAMES = {
+        "bundle",
+        "language",
+        "statement",
+        "executionCount",
+        "totalMillis",
+        "maxMillis",
+        "medianMillis",
+        "p99Millis",
+        "totalRows",
+        "maxRows",
+        "lastSlowPlan"
+    };
+
+    private static final OpenType<?>[] ITEM_TYPES = {
+        SimpleType.STRING,
+        SimpleType.STRING,
+        SimpleType.STRING,
+        SimpleType.LONG,
+        SimpleType.LONG,
+        SimpleType.LONG,
+        SimpleType.DOUBLE,
+        SimpleType.DOUBLE,
+        SimpleType.LONG,
+        SimpleType.LONG,
+        SimpleType.STRING
+    };
+
+    private final Logger logger = LoggerFactory.getLogger(QueryStatistics.class);
+
+    private final long slowQueryThreshold;
+
+    private final int maxStatements;
+
+    private final TimerStats queryDuration;
+
+    private final HistogramStats queryRows;
+
+    private final MeterStats slowQueries;
+
+    private final ConcurrentMap<Key, Statement> statements = new ConcurrentHashMap<>();
+
+    /**
+     * @param slowQueryThreshold latency in ms from which queries are logged with their plan, 0 to disable
+     * @param maxStatements      maximum number of statements to keep statistics for, further statements are only
+     *                           reported in the metrics
+     */
+    QueryStatistics(
+            final long slowQueryThreshold, final int maxStatements, final StatisticsProvider statisticsProvider) {
+        this.slowQueryThreshold = TimeUnit.MILLISECONDS.toNanos(slowQueryThreshold);
+        this.maxStatements = maxStatements;
+        this.queryDuration = statisticsProvider.getTimer(QUERY_DURATION, StatsOptions.METRICS_ONLY);
+        this.queryRows = statisticsProvider.getHistogram(QUERY_ROWS, StatsOptions.METRICS_ONLY);
+        this.slowQueries = statisticsProvider.getMeter(SLOW_QUERIES, StatsOptions.METRICS_ONLY);
+    }
+
+    /**
+     * Records a query which has finished.
+     *
+     * @param plan explains the query, called for slow queries only
+     */
+    void record(
+            final String bundle,
+            final String language,
+            final String statement,
+            final long nanos,
+            final long rows,
+            final Supplier<String> plan) {
+        queryDuration.update(nanos, TimeUnit.NANOSECONDS);
+        queryRows.update(rows);
+
+        String slowPlan = null;
+        if (slowQueryThreshold > 0 && nanos >= slowQueryThreshold) {
+            slowQueries.mark();
+            slowPlan = plan.get();
+            logger.warn(
+                    "slow query from {} took {} ms and returned {} rows: {} ({})\n{}",
+                    bundle,
+                    TimeUnit.NANOSECONDS.toMillis(nanos),
+                    rows,
+                    statement,
+                    language,
+                    slowPlan);
+        }
+
+        final Key key = new Key(bundle, language, statement);
+        Statement stats = statements.get(key);
+        if (stats == null) {
+            if (statements.size() >= maxStatements) {
+                return;
+            }
+            stats = statements.computeIfAbsent(key, k -> new Statement());
+        }
+        stats.record(nanos, rows, slowPlan);
+    }
+
+    @Override
+    public TabularData getStatements() {
+        try {
+            final CompositeType rowType = new CompositeType(
+                    "QueryStatistics", "Query statistics", ITEM_NAMES, ITEM_NAMES, ITEM_TYPES);
+            final TabularType tableType = new TabularType(
+                    "QueryStatistics",
+                    "Query statistics per statement and bundle",
+                    rowType,
+                    new String[] {"bundle", "language", "statement"});
+            final TabularDataSupport table = new TabularDataSupport(tableType);
+            for (Map.Entry<Key, Statement> entry : statements.entrySet()) {
+                final Key key = entry.getKey();
+                final Object[] values;
+                synchronized (entry.getValue()) {
+                    final Statement stats = entry.getValue();
+                    values = new Object[] {
+                        key.bundle,
+                        key.language,
+                        key.statement,
+                        stats.count,
+                        TimeUnit.NANOSECONDS.toMillis(stats.totalNanos),
+                        TimeUnit.NANOSECONDS.toMillis(stats.maxNanos),
+                        stats.percentileMillis(0.5),
+                        stats.percentileMillis(0.99),
+                        stats.totalRows,
+                        stats.maxRows,
+                        stats.lastSlowPlan != null ? stats.lastSlowPlan : ""
+                    };
+                }
+                table.put(new CompositeDataSupport(rowType, ITEM_NAMES, values));
+            }
+            return table;
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void reset() {
+        statements.clear();
+    }
+
+    private static final class Key {
+
+        private final String bundle;
+
+        private final String language;
+
+        private final String statement;
+
+        private Key(final String bundle, final String language, final String statement) {
+            this.bundle = bundle;
+            this.language = language;
+            this.statement = statement;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return bundle.equals(other.bundle) && language.equals(other.language) && statement.equals(other.statement);
+        }
+
+        @Override
+        public int hashCode() {
+            return (bundle.hashCode() * 31 + language.hashCode()) * 31 + statement.hashCode();
+        }
+    }
+
+    /**
+     * The statistics of a statement. The latency histogram has buckets of powers of two microseconds, from which the
+     * percentiles are estimated.
+     */
+    private static final class Statement {
+
+        private final long[] buckets = new long[Long.SIZE];
+
+        private long count;
+
+        private long totalNanos;
+
+        private long maxNanos;
+
+        private long totalRows;
+
+        private long maxRows;
+
+        private String lastSlowPlan;
+
+        private synchronized void record(final long nanos, final long rows, final String slowPlan) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            totalRows += rows;
+            maxRows = Math.max(maxRows, rows);
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(TimeUnit.NANOSECONDS.toMicros(nanos))]++;
+            if (slowPlan != null) {
+                lastSlowPlan = slowPlan;
+            }
+        }
+
+        /**
+         * The upper bound of the bucket containing the percentile, at most the maximum latency.
+         */
+        private double percentileMillis(final double percentile) {
+            final long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    final double upperBound = (1L << i) / 1000.0;
+                    return Math.min(upperBound, maxNanos / 1e6);
+                }
+            }
+            return maxNanos / 1e6;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * Query statistics per statement and calling bundle, to find the queries to optimize.
+ */
+public interface QueryStatisticsMBean {
+
+    String TYPE = "QueryStatistics";
+
+    /**
+     * One row per statement and calling bundle with the query language, the number of executions, the total, maximum,
+     * median and 99th percentile latency, the total and maximum number of rows returned, and the plan of the last
+     * slow execution.
+     */
+    TabularData getStatements();
+
+    /**
+     * Clears the statistics per statement.
+     */
+    void reset();
+}
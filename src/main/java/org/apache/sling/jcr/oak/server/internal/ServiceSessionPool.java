@@ -0,0 +1,306 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.oak.stats.MeterStats;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * A bounded pool of service sessions, keyed by the service principal names, the workspace name and the observation
+ * queue length.
+ *
+ * <p>Sessions handed out by the pool are refreshed before use, discarding the view of the previous borrower, and
+ * returned to the pool when they are logged out. Sessions with pending changes, registered event listeners, lock
+ * tokens or namespace prefixes remapped locally are not reused, as that state would leak to the next borrower. Idle
+ * sessions are evicted once they exceed the idle timeout or the pool bounds.</p>
+ *
+ * <p>Only the session handle ends with the lease. Nodes, properties and other objects obtained through it belong to
+ * the pooled session and stay usable after logout: what a previous borrower reads or changes through them acts on the
+ * session of the next borrower. Callers must not use them after logging out.</p>
+ */
+class ServiceSessionPool {
+
+    static final String HIT = "SLING_SERVICE_SESSION_POOL_HIT";
+
+    static final String MISS = "SLING_SERVICE_SESSION_POOL_MISS";
+
+    static final String EVICTION = "SLING_SERVICE_SESSION_POOL_EVICTION";
+
+    /**
+     * Creates a new session in case the pool cannot provide an idle one.
+     */
+    interface SessionFactory {
+        JackrabbitSession login() throws RepositoryException;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(ServiceSessionPool.class);
+
+    private final ConcurrentMap<Key, Deque<IdleSession>> idleSessions = new ConcurrentHashMap<>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final int maxIdle;
+
+    private final int maxIdlePerKey;
+
+    private final long idleTimeout;
+
+    private final MeterStats hits;
+
+    private final MeterStats misses;
+
+    private final MeterStats evictions;
+
+    private volatile long lastSweep = System.nanoTime();
+
+    private volatile boolean closed;
+
+    ServiceSessionPool(
+            final int maxIdle,
+            final int maxIdlePerKey,
+            final long idleTimeoutSeconds,
+            final StatisticsProvider statisticsProvider) {
+        this.maxIdle = maxIdle;
+        this.maxIdlePerKey = maxIdlePerKey;
+        this.idleTimeout = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.hits = statisticsProvider.getMeter(HIT, StatsOptions.METRICS_ONLY);
+        this.misses = statisticsProvider.getMeter(MISS, StatsOptions.METRICS_ONLY);
+        this.evictions = statisticsProvider.getMeter(EVICTION, StatsOptions.METRICS_ONLY);
+    }
+
+    /**
+     * Returns a refreshed idle session for the given principal names, workspace and observation queue length (0 for
+     * the repository wide length) or a new one created by the factory if there is none.
+     */
+    Session acquire(
+            final Iterable<String> servicePrincipalNames,
+            final String workspaceName,
+            final int observationQueueLength,
+            final SessionFactory factory)
+            throws RepositoryException {
+        final Key key = new Key(servicePrincipalNames, workspaceName, observationQueueLength);
+        final long now = System.nanoTime();
+        if (now - lastSweep > idleTimeout) {
+            lastSweep = now;
+            sweep(now);
+        }
+        final Deque<IdleSession> sessions = idleSessions.get(key);
+        if (sessions != null) {
+            IdleSession idle;
+            while ((idle = sessions.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                if (idle.isExpired(now, idleTimeout)) {
+                    evict(idle.session);
+                    continue;
+                }
+                try {
+                    idle.session.refresh(false);
+                } catch (RepositoryException e) {
+                    logger.debug("discarding pooled session which failed to refresh", e);
+                    evict(idle.session);
+                    continue;
+                }
+                hits.mark();
+                return new PooledJackrabbitSession(this, key, idle.session);
+            }
+        }
+        misses.mark();
+        return new PooledJackrabbitSession(this, key, factory.login());
+    }
+
+    /**
+     * Returns a session to the pool, or logs it out if it cannot be reused.
+     */
+    void release(final Key key, final JackrabbitSession session) {
+        if (closed || !isReusable(session) || !reserveIdle()) {
+            session.logout();
+            return;
+        }
+        final Deque<IdleSession> sessions = idleSessions.computeIfAbsent(key, k -> new ConcurrentLinkedDeque<>());
+        final boolean offered;
+        synchronized (sessions) {
+            // LIFO, so that the most recently used sessions are reused and the oldest ones expire at the tail
+            offered = sessions.size() < maxIdlePerKey
+                    && sessions.offerFirst(new IdleSession(session, System.nanoTime()));
+        }
+        if (!offered) {
+            idleCount.decrementAndGet();
+            session.logout();
+            return;
+        }
+        if (closed) {
+            // raced with close()
+            sweep(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Counts an idle session about to be pooled, unless the pool is full.
+     */
+    private boolean reserveIdle() {
+        while (true) {
+            final int count = idleCount.get();
+            if (count >= maxIdle) {
+                return false;
+            }
+            if (idleCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Logs out all idle sessions. Sessions in use are logged out when they are released.
+     */
+    void close() {
+        closed = true;
+        sweep(Long.MAX_VALUE);
+    }
+
+    private void sweep(final long now) {
+        for (Deque<IdleSession> sessions : idleSessions.values()) {
+            IdleSession idle;
+            while ((idle = sessions.peekLast()) != null && idle.isExpired(now, idleTimeout)) {
+                if (sessions.removeLastOccurrence(idle)) {
+                    idleCount.decrementAndGet();
+                    evict(idle.session);
+                }
+            }
+        }
+    }
+
+    private void evict(final JackrabbitSession session) {
+        evictions.mark();
+        session.logout();
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isReusable(final JackrabbitSession session) {
+        try {
+            return session.isLive()
+                    && !session.hasPendingChanges()
+                    && session.getLockTokens().length == 0
+                    && !session.getWorkspace()
+                            .getObservationManager()
+                            .getRegisteredEventListeners()
+                            .hasNext()
+                    && !hasLocalNamespaces(session);
+        } catch (RepositoryException e) {
+            logger.debug("not reusing session", e);
+            return false;
+        }
+    }
+
+    /**
+     * Whether a namespace prefix of the session differs from the repository wide one, after
+     * {@link Session#setNamespacePrefix(String, String)}.
+     */
+    private static boolean hasLocalNamespaces(final Session session) throws RepositoryException {
+        final NamespaceRegistry registry = session.getWorkspace().getNamespaceRegistry();
+        for (String prefix : session.getNamespacePrefixes()) {
+            try {
+                if (!session.getNamespaceURI(prefix).equals(registry.getURI(prefix))) {
+                    return true;
+                }
+            } catch (NamespaceException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class IdleSession {
+
+        private final JackrabbitSession session;
+
+        private final long since;
+
+        private IdleSession(final JackrabbitSession session, final long since) {
+            this.session = session;
+            this.since = since;
+        }
+
+        private boolean isExpired(final long now, final long idleTimeout) {
+            return now == Long.MAX_VALUE || now - since > idleTimeout;
+        }
+    }
+
+    static final class Key {
+
+        private final List<String> principalNames;
+
+        private final String workspaceName;
+
+        private final int observationQueueLength;
+
+        private final int hashCode;
+
+        private Key(
+                final Iterable<String> servicePrincipalNames,
+                final String workspaceName,
+                final int observationQueueLength) {
+            final List<String> names = new ArrayList<>();
+            servicePrincipalNames.forEach(names::add);
+            this.principalNames = unmodifiableList(names);
+            this.workspaceName = workspaceName;
+            this.observationQueueLength = observationQueueLength;
+            this.hashCode = Objects.hash(principalNames, workspaceName, observationQueueLength);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return principalNames.equals(other.principalNames)
+                    && Objects.equals(workspaceName, other.workspaceName)
+                    && observationQueueLength == other.observationQueueLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
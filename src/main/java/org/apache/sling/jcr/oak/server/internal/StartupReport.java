@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.spi.lifecycle.RepositoryInitializer;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.apache.jackrabbit.oak.stats.TimerStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the time taken by the phases of a repository startup, as metrics, in the log once the startup is finished
+ * and through {@link StartupReportMBean}.
+ */
+class StartupReport implements StartupReportMBean {
+
+    static final String STARTUP = "OAK_REPOSITORY_STARTUP";
+
+    enum Phase {
+        /**
+         * Starting to track the whiteboard services, e.g. the index providers.
+         */
+        WHITEBOARD_TRACKING,
+        /**
+         * Running a {@link RepositoryInitializer}.
+         */
+        INITIALIZER,
+        /**
+         * Creating the Oak content repository, including running the initializers.
+         */
+        CREATE_CONTENT_REPOSITORY,
+        /**
+         * Creating the JCR repository on top of the content repository.
+         */
+        CREATE_REPOSITORY;
+
+        String getMetricName() {
+            return STARTUP + "_" + name();
+        }
+    }
+
+    private static final String[] ITEM_NAMES = {"index", "phase", "className", "durationMillis"};
+
+    private static final OpenType<?>[] ITEM_TYPES = {
+        SimpleType.INTEGER, SimpleType.STRING, SimpleType.STRING, SimpleType.LONG
+    };
+
+    private final Logger logger = LoggerFactory.getLogger(StartupReport.class);
+
+    private final StatisticsProvider statisticsProvider;
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+
+    private final long start = System.nanoTime();
+
+    private volatile long startupMillis = -1;
+
+    StartupReport(final StatisticsProvider statisticsProvider) {
+        this.statisticsProvider = statisticsProvider;
+    }
+
+    /**
+     * Records a phase started at the given {@link System#nanoTime()}.
+     *
+     * @param className the initializer class, or {@code null} for other phases
+     */
+    void record(final Phase phase, final String className, final long started) {
+        final long duration = System.nanoTime() - started;
+        statisticsProvider
+                .getTimer(phase.getMetricName(), StatsOptions.METRICS_ONLY)
+                .update(duration, TimeUnit.NANOSECONDS);
+        entries.add(new Entry(phase, className, TimeUnit.NANOSECONDS.toMillis(duration)));
+    }
+
+    /**
+     * Returns an initializer recording its run as an {@link Phase#INITIALIZER} phase.
+     */
+    RepositoryInitializer timed(final RepositoryInitializer initializer) {
+        return builder -> {
+            final long started = System.nanoTime();
+            try {
+                initializer.initialize(builder);
+            } finally {
+                record(Phase.INITIALIZER, initializer.getClass().getName(), started);
+            }
+        };
+    }
+
+    /**
+     * Records the total startup time and logs the report.
+     */
+    void finish() {
+        final long duration = System.nanoTime() - start;
+        final TimerStats timer = statisticsProvider.getTimer(STARTUP, StatsOptions.METRICS_ONLY);
+        timer.update(duration, TimeUnit.NANOSECONDS);
+        startupMillis = TimeUnit.NANOSECONDS.toMillis(duration);
+        if (logger.isInfoEnabled()) {
+            final StringBuilder report = new StringBuilder();
+            for (Entry entry : entries) {
+                report.append(System.lineSeparator())
+                        .append("  ")
+                        .append(entry.phase)
+                        .append(entry.className != null ? " " + entry.className : "")
+                        .append(": ")
+                        .append(entry.durationMillis)
+                        .append(" ms");
+            }
+            logger.info("repository started in {} ms{}", startupMillis, report);
+        }
+    }
+
+    @Override
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    @Override
+    public TabularData getPhases() {
+        try {
+            final CompositeType rowType =
+                    new CompositeType("StartupPhase", "Repository startup phase", ITEM_NAMES, ITEM_NAMES, ITEM_TYPES);
+            final TabularType tableType =
+                    new TabularType("StartupPhases", "Repository startup phases", rowType, new String[] {"index"});
+            final TabularDataSupport table = new TabularDataSupport(tableType);
+            int index = 0;
+            for (Entry entry : entries) {
+                final Object[] values = {index++, entry.phase.name(), entry.className, entry.durationMillis};
+                table.put(new CompositeDataSupport(rowType, ITEM_NAMES, values));
+            }
+            return table;
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+
+        private final Phase phase;
+
+        private final String className;
+
+        private final long durationMillis;
+
+        private Entry(final Phase phase, final String className, final long durationMillis) {
+            this.phase = phase;
+            this.className = className;
+            this.durationMillis = durationMillis;
+        }
+    }
+}
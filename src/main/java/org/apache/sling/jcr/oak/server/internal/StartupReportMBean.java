@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * The time taken by the phases of the last repository startup.
+ */
+public interface StartupReportMBean {
+
+    String TYPE = "RepositoryStartup";
+
+    /**
+     * Time in milliseconds from the start of the first phase to the end of the last one.
+     */
+    long getStartupMillis();
+
+    /**
+     * One row per phase in the order the phases completed, with the phase, the class of the repository initializer
+     * for INITIALIZER phases and the duration in milliseconds. The initializers run while creating the content
+     * repository, so the CREATE_CONTENT_REPOSITORY phase includes their time.
+     */
+    TabularData getPhases();
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.security.auth.Subject;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.jackrabbit.oak.api.AuthInfo;
+import org.apache.jackrabbit.oak.spi.security.authentication.AuthInfoImpl;
+import org.apache.jackrabbit.oak.spi.security.principal.AdminPrincipal;
+import org.apache.jackrabbit.oak.spi.security.principal.SystemUserPrincipal;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * A bounded cache of the read-only, pre-authenticated {@link Subject}s used to log in service and administrative
+ * sessions, keyed by the list of principal names or the admin id.
+ *
+ * <p>The cache is cleared once it reaches its maximum size and whenever the service user mappings change.</p>
+ */
+class SubjectCache {
+
+    private final ConcurrentMap<List<String>, Subject> serviceSubjects = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    private final ConcurrentMap<String, Subject> administrativeSubjects = new ConcurrentHashMap<>();
+
+    SubjectCache(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    Subject getAdministrativeSubject(final String adminId) {
+        return administrativeSubjects.computeIfAbsent(adminId, id -> {
+            // TODO: use principal provider to retrieve admin principal
+            Set<AdminPrincipal> principals = singleton(() -> id);
+            return createSubject(id, principals);
+        });
+    }
+
+    Subject getServiceSubject(final Iterable<String> servicePrincipalNames) {
+        if (maxSize <= 0) {
+            return createServiceSubject(toList(servicePrincipalNames));
+        }
+        // any List implementation is a valid key for the lookup, only the stored key needs to be immutable
+        final List<String> key = servicePrincipalNames instanceof List
+                ? (List<String>) servicePrincipalNames
+                : toList(servicePrincipalNames);
+        Subject subject = serviceSubjects.get(key);
+        if (subject == null) {
+            if (serviceSubjects.size() >= maxSize) {
+                serviceSubjects.clear();
+            }
+            final List<String> names = unmodifiableList(new ArrayList<>(key));
+            subject = createServiceSubject(names);
+            serviceSubjects.put(names, subject);
+        }
+        return subject;
+    }
+
+    void clear() {
+        serviceSubjects.clear();
+    }
+
+    private static Subject createServiceSubject(final List<String> servicePrincipalNames) {
+        Set<SystemUserPrincipal> principals = new HashSet<>();
+        for (final String pName : servicePrincipalNames) principals.add(() -> pName);
+
+        // make sure to retain the first user id from the passed in servicePrincipalNames, for consistency
+        final String userId = servicePrincipalNames.isEmpty() ? null : servicePrincipalNames.get(0);
+        return createSubject(userId, principals);
+    }
+
+    private static Subject createSubject(final String userId, final Set<? extends Principal> principals) {
+        AuthInfo authInfo = new AuthInfoImpl(userId, emptyMap(), principals);
+        return new Subject(true, principals, singleton(authInfo), emptySet());
+    }
+
+    private static List<String> toList(final Iterable<String> servicePrincipalNames) {
+        final List<String> names = new ArrayList<>();
+        servicePrincipalNames.forEach(names::add);
+        return names;
+    }
+}
@@ -40,6 +40,8 @@ import org.apache.jackrabbit.oak.Oak;
  */
 public class TcclWrappingJackrabbitRepository implements JackrabbitRepository {
 
+    static final ClassLoader OAK_CLASS_LOADER = Oak.class.getClassLoader();
+
     private final JackrabbitRepository wrapped;
 
     public TcclWrappingJackrabbitRepository(JackrabbitRepository wrapped) {
@@ -72,20 +74,36 @@ public class TcclWrappingJackrabbitRepository implements JackrabbitRepository {
     @Override
     public Session login(Credentials credentials, String workspaceName, Map<String, Object> attributes)
             throws LoginException, NoSuchWorkspaceException, RepositoryException {
+        return loginWithOakClassLoader(() -> wrapped.login(credentials, workspaceName, attributes));
+    }
 
+    /**
+     * Logs in with the Oak class loader as TCCL, unless it is set already, and wraps the session.
+     */
+    static Session loginWithOakClassLoader(SessionLogin login) throws RepositoryException {
         Thread thread = Thread.currentThread();
 
         ClassLoader oldClassLoader = thread.getContextClassLoader();
-        thread.setContextClassLoader(Oak.class.getClassLoader());
+        if (oldClassLoader == OAK_CLASS_LOADER) {
+            // nothing to switch, e.g. for nested calls
+            return new TcclWrappingJackrabbitSession((JackrabbitSession) login.login());
+        }
+        thread.setContextClassLoader(OAK_CLASS_LOADER);
 
         try {
-            Session session = wrapped.login(credentials, workspaceName, attributes);
-            return new TcclWrappingJackrabbitSession((JackrabbitSession) session);
+            return new TcclWrappingJackrabbitSession((JackrabbitSession) login.login());
         } finally {
             thread.setContextClassLoader(oldClassLoader);
         }
     }
 
+    /**
+     * A login or impersonation to run with the Oak class loader as TCCL.
+     */
+    interface SessionLogin {
+        Session login() throws RepositoryException;
+    }
+
     // only pure delegate methods below
 
     @Override
@@ -52,7 +52,6 @@ import java.security.AccessControlException;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.api.security.user.UserManager;
-import org.apache.jackrabbit.oak.Oak;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
@@ -70,141 +69,137 @@ public class TcclWrappingJackrabbitSession implements JackrabbitSession {
         this.wrapped = wrapped;
     }
 
+    /**
+     * Returns the session all calls are delegated to. Subclasses may override this to guard access to it.
+     */
+    protected JackrabbitSession getWrapped() {
+        return wrapped;
+    }
+
     // calls setting the TCCL
 
     @Override
     public Session impersonate(Credentials credentials) throws LoginException, RepositoryException {
-
-        Thread thread = Thread.currentThread();
-
-        ClassLoader oldClassLoader = thread.getContextClassLoader();
-        thread.setContextClassLoader(Oak.class.getClassLoader());
-
-        try {
-            Session session = wrapped.impersonate(credentials);
-            return new TcclWrappingJackrabbitSession((JackrabbitSession) session);
-        } finally {
-            thread.setContextClassLoader(oldClassLoader);
-        }
+        return TcclWrappingJackrabbitRepository.loginWithOakClassLoader(() -> getWrapped().impersonate(credentials));
     }
 
     // only pure delegate methods below
 
     @Override
     public Repository getRepository() {
-        return wrapped.getRepository();
+        return getWrapped().getRepository();
     }
 
     @Override
     public String getUserID() {
-        return wrapped.getUserID();
+        return getWrapped().getUserID();
     }
 
     @Override
     public String[] getAttributeNames() {
-        return wrapped.getAttributeNames();
+        return getWrapped().getAttributeNames();
     }
 
     @Override
     public Object getAttribute(String name) {
-        return wrapped.getAttribute(name);
+        return getWrapped().getAttribute(name);
     }
 
     @Override
     public boolean hasPermission(String absPath, String... actions) throws RepositoryException {
-        return wrapped.hasPermission(absPath, actions);
+        return getWrapped().hasPermission(absPath, actions);
     }
 
     @Override
     public Workspace getWorkspace() {
-        return wrapped.getWorkspace();
+        return getWrapped().getWorkspace();
     }
 
     @Override
     public Node getRootNode() throws RepositoryException {
-        return wrapped.getRootNode();
+        return getWrapped().getRootNode();
     }
 
     @Override
     @SuppressWarnings("deprecation")
     public Node getNodeByUUID(String uuid) throws ItemNotFoundException, RepositoryException {
-        return wrapped.getNodeByUUID(uuid);
+        return getWrapped().getNodeByUUID(uuid);
     }
 
     @Override
     public Node getNodeByIdentifier(String id) throws ItemNotFoundException, RepositoryException {
-        return wrapped.getNodeByIdentifier(id);
+        return getWrapped().getNodeByIdentifier(id);
     }
 
     @Override
     public Item getItem(String absPath) throws PathNotFoundException, RepositoryException {
-        return wrapped.getItem(absPath);
+        return getWrapped().getItem(absPath);
     }
 
     @Override
     public PrincipalManager getPrincipalManager()
             throws AccessDeniedException, UnsupportedRepositoryOperationException, RepositoryException {
-        return wrapped.getPrincipalManager();
+        return getWrapped().getPrincipalManager();
     }
 
     @Override
     public Node getNode(String absPath) throws PathNotFoundException, RepositoryException {
-        return wrapped.getNode(absPath);
+        return getWrapped().getNode(absPath);
     }
 
     @Override
     public Property getProperty(String absPath) throws PathNotFoundException, RepositoryException {
-        return wrapped.getProperty(absPath);
+        return getWrapped().getProperty(absPath);
     }
 
     @Override
     public UserManager getUserManager()
             throws AccessDeniedException, UnsupportedRepositoryOperationException, RepositoryException {
-        return wrapped.getUserManager();
+        return getWrapped().getUserManager();
     }
 
     @Override
     public boolean itemExists(String absPath) throws RepositoryException {
-        return wrapped.itemExists(absPath);
+        return getWrapped().itemExists(absPath);
     }
 
     @Override
     public Item getItemOrNull(String absPath) throws RepositoryException {
-        return wrapped.getItemOrNull(absPath);
+        return getWrapped().getItemOrNull(absPath);
     }
 
     @Override
     public boolean nodeExists(String absPath) throws RepositoryException {
-        return wrapped.nodeExists(absPath);
+        return getWrapped().nodeExists(absPath);
     }
 
     @Override
     public Property getPropertyOrNull(String absPath) throws RepositoryException {
-        return wrapped.getPropertyOrNull(absPath);
+        return getWrapped().getPropertyOrNull(absPath);
     }
 
     @Override
     public boolean propertyExists(String absPath) throws RepositoryException {
-        return wrapped.propertyExists(absPath);
+        return getWrapped().propertyExists(absPath);
     }
 
     @Override
     public Node getNodeOrNull(String absPath) throws RepositoryException {
-        return wrapped.getNodeOrNull(absPath);
+        return getWrapped().getNodeOrNull(absPath);
     }
 
     @Override
     public void move(String srcAbsPath, String destAbsPath)
             throws ItemExistsException, PathNotFoundException, VersionException, ConstraintViolationException,
                     LockException, RepositoryException {
-        wrapped.move(srcAbsPath, destAbsPath);
+        getWrapped().move(srcAbsPath, destAbsPath);
     }
 
     @Override
     public void removeItem(String absPath)
             throws VersionException, LockException, ConstraintViolationException, AccessDeniedException,
                     RepositoryException {
-        wrapped.removeItem(absPath);
+        getWrapped().removeItem(absPath);
     }
 
     @Override
@@ -212,133 +207,133 @@ public class TcclWrappingJackrabbitSession implements JackrabbitSession {
             throws AccessDeniedException, ItemExistsException, ReferentialIntegrityException,
                     ConstraintViolationException, InvalidItemStateException, VersionException, LockException,
                     NoSuchNodeTypeException, RepositoryException {
-        wrapped.save();
+        getWrapped().save();
     }
 
     @Override
     public void refresh(boolean keepChanges) throws RepositoryException {
-        wrapped.refresh(keepChanges);
+        getWrapped().refresh(keepChanges);
     }
 
     @Override
     public boolean hasPendingChanges() throws RepositoryException {
-        return wrapped.hasPendingChanges();
+        return getWrapped().hasPendingChanges();
     }
 
     @Override
     public ValueFactory getValueFactory() throws UnsupportedRepositoryOperationException, RepositoryException {
-        return wrapped.getValueFactory();
+        return getWrapped().getValueFactory();
     }
 
     @Override
     public boolean hasPermission(String absPath, String actions) throws RepositoryException {
-        return wrapped.hasPermission(absPath, actions);
+        return getWrapped().hasPermission(absPath, actions);
     }
 
     @Override
     public void checkPermission(String absPath, String actions) throws AccessControlException, RepositoryException {
-        wrapped.checkPermission(absPath, actions);
+        getWrapped().checkPermission(absPath, actions);
     }
 
     @Override
     public boolean hasCapability(String methodName, Object target, Object[] arguments) throws RepositoryException {
-        return wrapped.hasCapability(methodName, target, arguments);
+        return getWrapped().hasCapability(methodName, target, arguments);
     }
 
     @Override
     public ContentHandler getImportContentHandler(String parentAbsPath, int uuidBehavior)
             throws PathNotFoundException, ConstraintViolationException, VersionException, LockException,
                     RepositoryException {
-        return wrapped.getImportContentHandler(parentAbsPath, uuidBehavior);
+        return getWrapped().getImportContentHandler(parentAbsPath, uuidBehavior);
     }
 
     @Override
     public void importXML(String parentAbsPath, InputStream in, int uuidBehavior)
             throws IOException, PathNotFoundException, ItemExistsException, ConstraintViolationException,
                     VersionException, InvalidSerializedDataException, LockException, RepositoryException {
-        wrapped.importXML(parentAbsPath, in, uuidBehavior);
+        getWrapped().importXML(parentAbsPath, in, uuidBehavior);
     }
 
     @Override
     public void exportSystemView(String absPath, ContentHandler contentHandler, boolean skipBinary, boolean noRecurse)
             throws PathNotFoundException, SAXException, RepositoryException {
-        wrapped.exportSystemView(absPath, contentHandler, skipBinary, noRecurse);
+        getWrapped().exportSystemView(absPath, contentHandler, skipBinary, noRecurse);
     }
 
     @Override
     public void exportSystemView(String absPath, OutputStream out, boolean skipBinary, boolean noRecurse)
             throws IOException, PathNotFoundException, RepositoryException {
-        wrapped.exportSystemView(absPath, out, skipBinary, noRecurse);
+        getWrapped().exportSystemView(absPath, out, skipBinary, noRecurse);
     }
 
     @Override
     public void exportDocumentView(String absPath, ContentHandler contentHandler, boolean skipBinary, boolean noRecurse)
             throws PathNotFoundException, SAXException, RepositoryException {
-        wrapped.exportDocumentView(absPath, contentHandler, skipBinary, noRecurse);
+        getWrapped().exportDocumentView(absPath, contentHandler, skipBinary, noRecurse);
     }
 
     @Override
     public void exportDocumentView(String absPath, OutputStream out, boolean skipBinary, boolean noRecurse)
             throws IOException, PathNotFoundException, RepositoryException {
-        wrapped.exportDocumentView(absPath, out, skipBinary, noRecurse);
+        getWrapped().exportDocumentView(absPath, out, skipBinary, noRecurse);
     }
 
     @Override
     public void setNamespacePrefix(String prefix, String uri) throws NamespaceException, RepositoryException {
-        wrapped.setNamespacePrefix(prefix, uri);
+        getWrapped().setNamespacePrefix(prefix, uri);
     }
 
     @Override
     public String[] getNamespacePrefixes() throws RepositoryException {
-        return wrapped.getNamespacePrefixes();
+        return getWrapped().getNamespacePrefixes();
     }
 
     @Override
     public String getNamespaceURI(String prefix) throws NamespaceException, RepositoryException {
-        return wrapped.getNamespaceURI(prefix);
+        return getWrapped().getNamespaceURI(prefix);
     }
 
     @Override
     public String getNamespacePrefix(String uri) throws NamespaceException, RepositoryException {
-        return wrapped.getNamespacePrefix(uri);
+        return getWrapped().getNamespacePrefix(uri);
     }
 
     @Override
     public void logout() {
-        wrapped.logout();
+        getWrapped().logout();
     }
 
     @Override
     public boolean isLive() {
-        return wrapped.isLive();
+        return getWrapped().isLive();
     }
 
     @Override
     @SuppressWarnings("deprecation")
     public void addLockToken(String lt) {
-        wrapped.addLockToken(lt);
+        getWrapped().addLockToken(lt);
     }
 
     @Override
     @SuppressWarnings("deprecation")
     public String[] getLockTokens() {
-        return wrapped.getLockTokens();
+        return getWrapped().getLockTokens();
     }
 
     @Override
     @SuppressWarnings("deprecation")
     public void removeLockToken(String lt) {
-        wrapped.removeLockToken(lt);
+        getWrapped().removeLockToken(lt);
     }
 
     @Override
     public AccessControlManager getAccessControlManager()
             throws UnsupportedRepositoryOperationException, RepositoryException {
-        return wrapped.getAccessControlManager();
+        return getWrapped().getAccessControlManager();
     }
 
     @Override
     public RetentionManager getRetentionManager() throws UnsupportedRepositoryOperationException, RepositoryException {
-        return wrapped.getRetentionManager();
+        return getWrapped().getRetentionManager();
     }
 }
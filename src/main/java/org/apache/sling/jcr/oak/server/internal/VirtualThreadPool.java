@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.sling.commons.threads.ModifiableThreadPoolConfig;
+import org.apache.sling.commons.threads.ThreadPool;
+import org.apache.sling.commons.threads.ThreadPoolConfig;
+
+/**
+ * A {@link ThreadPool} running each task in a new virtual thread. Virtual threads are available from Java 21 on, so
+ * they are looked up reflectively to keep this bundle running on older Java versions.
+ */
+class VirtualThreadPool implements ThreadPool, Executor {
+
+    private final String name;
+
+    private final ExecutorService executorService;
+
+    private final ModifiableThreadPoolConfig configuration = new ModifiableThreadPoolConfig();
+
+    private VirtualThreadPool(final String name, final ExecutorService executorService) {
+        this.name = name;
+        this.executorService = executorService;
+        configuration.setMinPoolSize(0);
+        configuration.setMaxPoolSize(Integer.MAX_VALUE);
+        configuration.setQueueSize(0);
+        configuration.setDaemon(true);
+    }
+
+    /**
+     * Returns a new pool with threads named after the given name, or {@code null} if virtual threads are not
+     * available.
+     */
+    static VirtualThreadPool create(final String name) {
+        try {
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            final ThreadFactory factory =
+                    (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            final ExecutorService executorService = (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+            return new VirtualThreadPool(name, executorService);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(final Runnable runnable) {
+        executorService.execute(runnable);
+    }
+
+    @Override
+    public <T> Future<T> submit(final Callable<T> callable) {
+        return executorService.submit(callable);
+    }
+
+    @Override
+    public Future<?> submit(final Runnable runnable) {
+        return executorService.submit(runnable);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public ThreadPoolConfig getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Stops accepting new tasks, running tasks are not interrupted.
+     */
+    void shutdown() {
+        executorService.shutdown();
+    }
+}
@@ -18,54 +18,327 @@
  */
 package org.apache.sling.jcr.oak.server.internal.index;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.plugins.index.lucene.util.LuceneIndexHelper;
 import org.apache.jackrabbit.oak.spi.lifecycle.RepositoryInitializer;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.jetbrains.annotations.NotNull;
 import org.osgi.framework.Constants;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.metatype.annotations.Designate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.JcrConstants.NT_UNSTRUCTURED;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_PROPERTY_NAME;
 import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
 
 @Component(
-        property = {Constants.SERVICE_DESCRIPTION + "=Apache Sling JCR Oak Repository – Lucene Index Definition"},
+        property = {
+            Constants.SERVICE_DESCRIPTION + "=Apache Sling JCR Oak Repository – Lucene Index Definition",
+            "webconsole.configurationFactory.nameHint=Lucene index {name} on {includedPaths}"
+        },
         configurationPolicy = ConfigurationPolicy.REQUIRE)
-@Designate(ocd = LuceneIndexRepositoryInitializerConfiguration.class)
+@Designate(ocd = LuceneIndexRepositoryInitializerConfiguration.class, factory = true)
 public class LuceneIndexRepositoryInitializer implements RepositoryInitializer {
 
+    private static final String CHILD_ORDER = ":childOrder";
+
+    private static final String REFRESH = "refresh";
+
+    /**
+     * Properties of an index definition maintained by Oak.
+     */
+    private static final Set<String> OAK_PROPERTIES = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList(REINDEX_PROPERTY_NAME, "reindexCount", "seed", REFRESH)));
+
+    /**
+     * The active configurations by index name, in the order of their activation, to detect configurations of the same
+     * index overwriting each other's definition.
+     */
+    private static final Map<String, List<LuceneIndexRepositoryInitializer>> ACTIVE = new HashMap<>();
+
     private LuceneIndexRepositoryInitializerConfiguration configuration;
 
     private final Logger logger = LoggerFactory.getLogger(LuceneIndexRepositoryInitializer.class);
 
+    public LuceneIndexRepositoryInitializer() {}
+
+    /**
+     * Creates an activated initializer outside of OSGi, e.g. for the benchmarks.
+     */
+    LuceneIndexRepositoryInitializer(final LuceneIndexRepositoryInitializerConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
     @Activate
     private void activate(final LuceneIndexRepositoryInitializerConfiguration configuration) {
         logger.debug("activating");
         this.configuration = configuration;
+        synchronized (ACTIVE) {
+            ACTIVE.computeIfAbsent(configuration.name(), name -> new ArrayList<>()).add(this);
+        }
+    }
+
+    @Deactivate
+    private void deactivate() {
+        synchronized (ACTIVE) {
+            final List<LuceneIndexRepositoryInitializer> initializers = ACTIVE.get(configuration.name());
+            if (initializers != null && initializers.remove(this) && initializers.isEmpty()) {
+                ACTIVE.remove(configuration.name());
+            }
+        }
+    }
+
+    /**
+     * Whether another active configuration of the same index name was activated before this one.
+     */
+    private boolean isDuplicate() {
+        synchronized (ACTIVE) {
+            final List<LuceneIndexRepositoryInitializer> initializers = ACTIVE.get(configuration.name());
+            return initializers != null && initializers.contains(this) && initializers.get(0) != this;
+        }
     }
 
     @Override
     public void initialize(@NotNull NodeBuilder root) {
         logger.debug("initializing");
+        if (isDuplicate()) {
+            logger.warn(
+                    "ignoring configuration of Lucene index {} on {}, the index is configured more than once",
+                    configuration.name(),
+                    Arrays.asList(configuration.includedPaths()));
+            return;
+        }
         if (root.hasChildNode(INDEX_DEFINITIONS_NAME)) {
             final NodeBuilder index = root.child(INDEX_DEFINITIONS_NAME);
             // lucene full-text index
             if (!index.hasChildNode(configuration.name())) {
                 logger.debug("adding new Lucene index definition");
-                LuceneIndexHelper.newLuceneIndexDefinition(
-                        index,
-                        configuration.name(),
-                        new HashSet<>(Arrays.asList(configuration.includePropertyTypes())),
-                        new HashSet<>(Arrays.asList(configuration.excludePropertyNames())),
-                        "async");
+                index.setChildNode(configuration.name(), getIndexDefinition());
+            } else {
+                final NodeBuilder existing = index.child(configuration.name());
+                final NodeState definition = getIndexDefinition();
+                if (!isSameDefinition(existing.getNodeState(), definition)) {
+                    if (configuration.updateDefinition()) {
+                        update(existing, definition);
+                    } else {
+                        logger.info(
+                                "Lucene index definition {} differs from its configuration, not updating it",
+                                configuration.name());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the definition, keeping Oak's hidden index data, and has Oak reindex or refresh it.
+     */
+    private void update(final NodeBuilder existing, final NodeState definition) {
+        for (PropertyState property : existing.getProperties()) {
+            if (isDefinitionItem(property.getName())) {
+                existing.removeProperty(property.getName());
+            }
+        }
+        for (String name : existing.getChildNodeNames()) {
+            if (isDefinitionItem(name)) {
+                existing.getChildNode(name).remove();
+            }
+        }
+        for (PropertyState property : definition.getProperties()) {
+            existing.setProperty(property);
+        }
+        for (ChildNodeEntry child : definition.getChildNodeEntries()) {
+            existing.setChildNode(child.getName(), child.getNodeState());
+        }
+        if (configuration.reindex()) {
+            logger.info(
+                    "updating Lucene index definition {} and reindexing it on async lane {}",
+                    configuration.name(),
+                    configuration.asyncLane());
+            existing.setProperty(REINDEX_PROPERTY_NAME, true);
+            existing.removeProperty(REFRESH);
+        } else {
+            logger.info("updating Lucene index definition {}", configuration.name());
+            existing.setProperty(REINDEX_PROPERTY_NAME, false);
+            existing.setProperty(REFRESH, true);
+        }
+    }
+
+    /**
+     * Compares the definitions, ignoring the hidden items and the properties maintained by Oak.
+     */
+    private static boolean isSameDefinition(final NodeState existing, final NodeState definition) {
+        final Set<String> properties = new HashSet<>();
+        for (PropertyState property : existing.getProperties()) {
+            if (isDefinitionItem(property.getName())) {
+                properties.add(property.getName());
+                if (!property.equals(definition.getProperty(property.getName()))) {
+                    return false;
+                }
+            }
+        }
+        for (PropertyState property : definition.getProperties()) {
+            if (isDefinitionItem(property.getName()) && !properties.contains(property.getName())) {
+                return false;
+            }
+        }
+        final Set<String> children = new HashSet<>();
+        for (ChildNodeEntry child : existing.getChildNodeEntries()) {
+            if (isDefinitionItem(child.getName())) {
+                children.add(child.getName());
+                final NodeState other = definition.getChildNode(child.getName());
+                if (!other.exists() || !isSameDefinition(child.getNodeState(), other)) {
+                    return false;
+                }
+            }
+        }
+        for (String name : definition.getChildNodeNames()) {
+            if (isDefinitionItem(name) && !children.contains(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDefinitionItem(final String name) {
+        return CHILD_ORDER.equals(name) || !name.startsWith(":") && !OAK_PROPERTIES.contains(name);
+    }
+
+    /**
+     * Returns the index definition as configured.
+     */
+    private NodeState getIndexDefinition() {
+        final NodeBuilder definition = LuceneIndexHelper.newLuceneIndexDefinition(
+                EMPTY_NODE.builder(),
+                configuration.name(),
+                new HashSet<>(Arrays.asList(configuration.includePropertyTypes())),
+                new HashSet<>(Arrays.asList(configuration.excludePropertyNames())),
+                configuration.asyncLane());
+        final String indexingMode = configuration.indexingMode();
+        if ("nrt".equals(indexingMode) || "sync".equals(indexingMode)) {
+            // hybrid index, indexed by the async lane and in addition locally
+            definition.setProperty(
+                    ASYNC_PROPERTY_NAME,
+                    Arrays.asList(configuration.asyncLane(), indexingMode),
+                    Type.STRINGS);
+        } else if (!"async".equals(indexingMode)) {
+            logger.warn("ignoring invalid indexing mode '{}', expected 'async', 'nrt' or 'sync'", indexingMode);
+        }
+        if (configuration.evaluatePathRestrictions()) {
+            definition.setProperty("evaluatePathRestrictions", true);
+        }
+        if (configuration.compatVersion() > 0) {
+            definition.setProperty("compatVersion", (long) configuration.compatVersion());
+        }
+        if (!configuration.codec().isEmpty()) {
+            definition.setProperty("codec", configuration.codec());
+        }
+        if (configuration.costPerEntry() > 0) {
+            definition.setProperty("costPerEntry", configuration.costPerEntry());
+        }
+        if (configuration.costPerExecution() > 0) {
+            definition.setProperty("costPerExecution", configuration.costPerExecution());
+        }
+        setPaths(definition, "includedPaths", configuration.includedPaths());
+        setPaths(definition, "excludedPaths", configuration.excludedPaths());
+        setPaths(definition, "queryPaths", configuration.queryPaths());
+        for (String indexRule : configuration.indexRules()) {
+            addIndexRule(definition, indexRule);
+        }
+        for (String aggregate : configuration.aggregates()) {
+            addAggregate(definition, aggregate);
+        }
+        return definition.getNodeState();
+    }
+
+    private void addIndexRule(final NodeBuilder definition, final String indexRule) {
+        final String[] parts = indexRule.split(";");
+        if (parts.length < 2 || parts[0].trim().isEmpty() || parts[1].trim().isEmpty()) {
+            logger.warn("ignoring invalid index rule '{}', expected 'nodeType;property[;option=value...]'", indexRule);
+            return;
+        }
+        final NodeBuilder properties =
+                child(child(child(definition, "indexRules"), parts[0].trim()), "properties");
+        final String propertyName = parts[1].trim();
+        final String baseName = propertyName.replaceAll("[^\\w.-]", "_");
+        String name = baseName;
+        for (int i = 1; properties.hasChildNode(name); i++) {
+            name = baseName + i;
+        }
+        final NodeBuilder property = child(properties, name).setProperty("name", propertyName);
+        for (int i = 2; i < parts.length; i++) {
+            final String[] option = parts[i].split("=", 2);
+            if (option.length != 2 || option[0].trim().isEmpty()) {
+                logger.warn("ignoring invalid option '{}' of index rule '{}'", parts[i], indexRule);
+                continue;
+            }
+            final String value = option[1].trim();
+            if ("true".equals(value) || "false".equals(value)) {
+                property.setProperty(option[0].trim(), Boolean.parseBoolean(value));
+            } else {
+                try {
+                    property.setProperty(option[0].trim(), Double.parseDouble(value));
+                } catch (NumberFormatException e) {
+                    property.setProperty(option[0].trim(), value);
+                }
+            }
+        }
+    }
+
+    private void addAggregate(final NodeBuilder definition, final String aggregate) {
+        final String[] parts = aggregate.split(";");
+        if (parts.length < 2 || parts[0].trim().isEmpty()) {
+            logger.warn(
+                    "ignoring invalid aggregate '{}', expected 'nodeType;relativePath[;relativePath...]'", aggregate);
+            return;
+        }
+        final NodeBuilder includes = child(child(definition, "aggregates"), parts[0].trim());
+        for (int i = 1; i < parts.length; i++) {
+            final String include = "include" + includes.getChildNodeCount(Long.MAX_VALUE);
+            child(includes, include).setProperty("path", parts[i].trim());
+        }
+    }
+
+    private static void setPaths(final NodeBuilder definition, final String name, final String[] paths) {
+        if (paths.length > 0) {
+            definition.setProperty(name, Arrays.asList(paths), Type.STRINGS);
+        }
+    }
+
+    /**
+     * Returns the child with the given name, adding it as last child if missing.
+     */
+    private static NodeBuilder child(final NodeBuilder parent, final String name) {
+        if (!parent.hasChildNode(name)) {
+            final List<String> childOrder = new ArrayList<>();
+            final PropertyState property = parent.getProperty(CHILD_ORDER);
+            if (property != null) {
+                property.getValue(Type.NAMES).forEach(childOrder::add);
             }
+            childOrder.add(name);
+            parent.setProperty(CHILD_ORDER, childOrder, Type.NAMES);
+            parent.child(name).setProperty(JCR_PRIMARYTYPE, NT_UNSTRUCTURED, Type.NAME);
         }
+        return parent.child(name);
     }
 }
@@ -20,15 +20,51 @@ package org.apache.sling.jcr.oak.server.internal.index;
 
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 
 @ObjectClassDefinition(
         name = "Apache Sling JCR Oak Repository – Lucene Index Definition",
-        description = "Configuration to set up a Lucene Index Definition")
+        description = "Configuration to set up a Lucene Index Definition, one per configuration")
 @interface LuceneIndexRepositoryInitializerConfiguration {
 
-    @AttributeDefinition(name = "Index Name", description = "The name of the index.")
+    @AttributeDefinition(
+            name = "Index Name",
+            description = "The name of the index, unique among the configurations. Further configurations of an index "
+                    + "name already configured, e.g. ones keeping the default name, are ignored with a warning.")
     String name() default "lucene";
 
+    @AttributeDefinition(
+            name = "Async Lane",
+            description = "The async indexing lane which updates the index, "
+                    + "see the async indexing lanes of the Apache Sling JCR Oak Repository.")
+    String asyncLane() default "async";
+
+    @AttributeDefinition(
+            name = "Indexing Mode",
+            description = "Whether local changes are only indexed by the async lane, or also near real-time or "
+                    + "synchronously (hybrid index), making them visible to queries on this instance right away. The "
+                    + "size of the hybrid indexing queue and the refresh interval of near real-time indexes are "
+                    + "settings of Oak's Lucene index provider.",
+            options = {
+                @Option(label = "async", value = "async"),
+                @Option(label = "near real-time", value = "nrt"),
+                @Option(label = "synchronous", value = "sync")
+            })
+    String indexingMode() default "async";
+
+    @AttributeDefinition(
+            name = "Update Definition",
+            description = "Whether to update an existing index definition which differs from this configuration. "
+                    + "Otherwise existing definitions are left as they are.")
+    boolean updateDefinition() default false;
+
+    @AttributeDefinition(
+            name = "Reindex",
+            description = "Whether to reindex on the async lane after updating the definition. Otherwise Oak only "
+                    + "refreshes the definition, which suffices for changes not affecting the indexed content, e.g. "
+                    + "the costs or query paths. The progress is reported by the IndexStats MBean of the lane.")
+    boolean reindex() default false;
+
     @AttributeDefinition(name = "Include Property Types", description = "Property types which should be indexed.")
     String[] includePropertyTypes() default {"String", "Binary"};
 
@@ -36,4 +72,51 @@ import org.osgi.service.metatype.annotations.ObjectClassDefinition;
     String[] excludePropertyNames() default {
         "jcr:createdBy", "jcr:lastModifiedBy", "sling:alias", "sling:resourceType", "sling:vanityPath"
     };
+
+    @AttributeDefinition(
+            name = "Index Rules",
+            description = "Index rules as 'nodeType;property[;option=value...]', replacing the include property types "
+                    + "and exclude property names. The options are set on the property definition, e.g. "
+                    + "'propertyIndex', 'analyzed', 'nodeScopeIndex', 'ordered', 'nullCheckEnabled', 'isRegexp' "
+                    + "(true or false), 'boost' (a number) or 'type'. Rules apply in the given order.")
+    String[] indexRules() default {};
+
+    @AttributeDefinition(
+            name = "Aggregates",
+            description = "Aggregates as 'nodeType;relativePath[;relativePath...]', e.g. 'nt:file;jcr:content'.")
+    String[] aggregates() default {};
+
+    @AttributeDefinition(
+            name = "Evaluate Path Restrictions",
+            description = "Whether the index evaluates path restrictions of queries itself.")
+    boolean evaluatePathRestrictions() default false;
+
+    @AttributeDefinition(
+            name = "Compatibility Version",
+            description = "The index format version, 0 for Oak's default.")
+    int compatVersion() default 0;
+
+    @AttributeDefinition(name = "Codec", description = "The Lucene codec, e.g. 'Lucene46', empty for Oak's default.")
+    String codec() default "";
+
+    @AttributeDefinition(
+            name = "Cost Per Entry",
+            description = "The query cost per index entry, 0 for Oak's default.")
+    double costPerEntry() default 0;
+
+    @AttributeDefinition(
+            name = "Cost Per Execution",
+            description = "The query cost per index lookup, 0 for Oak's default.")
+    double costPerExecution() default 0;
+
+    @AttributeDefinition(name = "Included Paths", description = "Paths to index, all if empty.")
+    String[] includedPaths() default {};
+
+    @AttributeDefinition(name = "Excluded Paths", description = "Paths not to index.")
+    String[] excludedPaths() default {};
+
+    @AttributeDefinition(
+            name = "Query Paths",
+            description = "Paths of the queries the index is used for, all if empty.")
+    String[] queryPaths() default {};
 }
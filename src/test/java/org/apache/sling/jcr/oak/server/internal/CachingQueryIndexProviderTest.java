@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.plugins.index.cursor.Cursors;
+import org.apache.jackrabbit.oak.plugins.index.property.PropertyIndexProvider;
+import org.apache.jackrabbit.oak.spi.query.Cursor;
+import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.AdvanceFulltextQueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.IndexPlan;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.NativeQueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.NodeAggregator;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.OrderEntry;
+import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.stats.DefaultStatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class CachingQueryIndexProviderTest {
+
+    private static final String QUERY = "select * from [nt:base] where [foo] = 'x'";
+
+    private ScheduledExecutorService executor;
+
+    private DefaultStatisticsProvider statisticsProvider;
+
+    private Session session;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        statisticsProvider = new DefaultStatisticsProvider(executor);
+    }
+
+    @After
+    public void tearDown() {
+        if (session != null) {
+            session.logout();
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void repeatedPlanningIsAnsweredFromTheCache() throws RepositoryException {
+        login(100, 60000);
+        query();
+        final long hits = count(CachingQueryIndexProvider.HITS);
+        final long misses = count(CachingQueryIndexProvider.MISSES);
+        query();
+        assertThat(count(CachingQueryIndexProvider.MISSES), is(misses));
+        assertThat(count(CachingQueryIndexProvider.HITS), greaterThan(hits));
+    }
+
+    @Test
+    public void indexDefinitionChangeDropsEntries() throws RepositoryException {
+        login(100, 60000);
+        query();
+        final long misses = count(CachingQueryIndexProvider.MISSES);
+        session.getNode("/oak:index/foo")
+                .setProperty("declaringNodeTypes", new String[] {JcrConstants.NT_UNSTRUCTURED}, PropertyType.NAME);
+        session.save();
+        query();
+        assertThat(count(CachingQueryIndexProvider.MISSES), greaterThan(misses));
+    }
+
+    @Test
+    public void indexContentChangeKeepsEntries() throws RepositoryException {
+        login(100, 60000);
+        query();
+        final long misses = count(CachingQueryIndexProvider.MISSES);
+        session.getNode("/content").addNode("b", JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+        session.save();
+        query();
+        assertThat(count(CachingQueryIndexProvider.MISSES), is(misses));
+    }
+
+    @Test
+    public void entriesExpire() throws RepositoryException {
+        login(100, 0);
+        query();
+        final long misses = count(CachingQueryIndexProvider.MISSES);
+        query();
+        assertThat(count(CachingQueryIndexProvider.MISSES), greaterThan(misses));
+        assertThat(count(CachingQueryIndexProvider.HITS), is(0L));
+    }
+
+    @Test
+    public void noEntriesDisableCaching() throws RepositoryException {
+        login(0, 60000);
+        query();
+        query();
+        assertThat(count(CachingQueryIndexProvider.MISSES), is(0L));
+        assertThat(count(CachingQueryIndexProvider.HITS), is(0L));
+    }
+
+    @Test
+    public void nativeFulltextIndexAnswersNativeQueries() throws RepositoryException {
+        nativeFulltextIndexAnswersNativeQueries(100);
+    }
+
+    @Test
+    public void unCachedNativeFulltextIndexAnswersNativeQueries() throws RepositoryException {
+        nativeFulltextIndexAnswersNativeQueries(0);
+    }
+
+    private void nativeFulltextIndexAnswersNativeQueries(final int maxEntries) throws RepositoryException {
+        final QueryIndexProvider indexes = root -> Collections.singletonList(new NativeFulltextIndex());
+        final CachingQueryIndexProvider provider =
+                new CachingQueryIndexProvider(indexes, maxEntries, 60000, statisticsProvider);
+        assertThat(provider.getQueryIndexes(EMPTY_NODE).get(0), instanceOf(NativeQueryIndex.class));
+        assertThat(provider.getQueryIndexes(EMPTY_NODE).get(0), instanceOf(AdvanceFulltextQueryIndex.class));
+
+        login(provider);
+        final Query query = session.getWorkspace()
+                .getQueryManager()
+                .createQuery("select * from [nt:base] where native('test', 'anything')", Query.JCR_SQL2);
+        final NodeIterator nodes = query.execute().getNodes();
+        assertThat(nodes.hasNext(), is(true));
+        assertThat(nodes.nextNode().getPath(), is("/content/a"));
+    }
+
+    private void login(final int maxEntries, final long maxAge) throws RepositoryException {
+        login(new CachingQueryIndexProvider(new PropertyIndexProvider(), maxEntries, maxAge, statisticsProvider));
+    }
+
+    private void login(final CachingQueryIndexProvider provider) throws RepositoryException {
+        session = new Jcr().with(provider)
+                .createRepository()
+                .login(new SimpleCredentials("admin", "admin".toCharArray()));
+        final Node index = session.getNode("/oak:index").addNode("foo", "oak:QueryIndexDefinition");
+        index.setProperty("type", "property");
+        index.setProperty("propertyNames", new String[] {"foo"}, PropertyType.NAME);
+        index.setProperty("reindex", true);
+        session.getRootNode()
+                .addNode("content", JcrConstants.NT_UNSTRUCTURED)
+                .addNode("a", JcrConstants.NT_UNSTRUCTURED)
+                .setProperty("foo", "x");
+        session.save();
+    }
+
+    private void query() throws RepositoryException {
+        final Query query = session.getWorkspace().getQueryManager().createQuery(QUERY, Query.JCR_SQL2);
+        final NodeIterator nodes = query.execute().getNodes();
+        assertThat(nodes.hasNext(), is(true));
+    }
+
+    private long count(final String name) {
+        return statisticsProvider.getMeter(name, StatsOptions.DEFAULT).getCount();
+    }
+
+    /**
+     * Answers the native queries of the language {@code test} with {@code /content/a}, like Oak's full-text indexes,
+     * which are native ones as well.
+     */
+    private static final class NativeFulltextIndex implements AdvanceFulltextQueryIndex, NativeQueryIndex {
+
+        private static final String RESTRICTION = "native*test";
+
+        @Override
+        public List<IndexPlan> getPlans(
+                final Filter filter, final List<OrderEntry> sortOrder, final NodeState rootState) {
+            if (filter.getPropertyRestriction(RESTRICTION) == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new IndexPlan.Builder()
+                    .setCostPerExecution(1)
+                    .setEstimatedEntryCount(1)
+                    .setFilter(filter)
+                    .build());
+        }
+
+        @Override
+        public Cursor query(final IndexPlan plan, final NodeState rootState) {
+            return Cursors.newPathCursor(
+                    Collections.singletonList("/content/a"), plan.getFilter().getQueryLimits());
+        }
+
+        @Override
+        public String getPlanDescription(final IndexPlan plan, final NodeState root) {
+            return "test";
+        }
+
+        @Override
+        public NodeAggregator getNodeAggregator() {
+            return null;
+        }
+
+        @Override
+        public double getMinimumCost() {
+            return 1;
+        }
+
+        @Override
+        public double getCost(final Filter filter, final NodeState rootState) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Cursor query(final Filter filter, final NodeState rootState) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getPlan(final Filter filter, final NodeState rootState) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getIndexName() {
+            return "test";
+        }
+    }
+}
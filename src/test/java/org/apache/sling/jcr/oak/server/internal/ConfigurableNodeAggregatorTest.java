@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.oak.InitialContent;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ConfigurableNodeAggregatorTest {
+
+    private NodeState root;
+
+    @Before
+    public void setUp() {
+        final NodeBuilder builder = EMPTY_NODE.builder();
+        new InitialContent().initialize(builder);
+        addNode(builder, "/folder", JcrConstants.NT_FOLDER);
+        addNode(builder, "/folder/file", JcrConstants.NT_FILE);
+        addNode(builder, "/folder/file/jcr:content", JcrConstants.NT_RESOURCE);
+        addNode(builder, "/folder/file/other", JcrConstants.NT_UNSTRUCTURED);
+        addNode(builder, "/folder/a/b/c", JcrConstants.NT_UNSTRUCTURED);
+        addNode(builder, "/titled", JcrConstants.NT_UNSTRUCTURED)
+                .setProperty(JcrConstants.JCR_MIXINTYPES, Arrays.asList("mix:title"), Type.NAMES);
+        addNode(builder, "/titled/child", JcrConstants.NT_UNSTRUCTURED);
+        root = builder.getNodeState();
+    }
+
+    @Test
+    public void includeMatchesTheRelativePath() {
+        final ConfigurableNodeAggregator aggregator = aggregator("nt:file;jcr:content");
+        assertThat(parents(aggregator, "/folder/file/jcr:content"), is(list("/folder/file")));
+        assertThat(parents(aggregator, "/folder/file/other"), is(list()));
+    }
+
+    @Test
+    public void anyNameMatchesAllChildren() {
+        final ConfigurableNodeAggregator aggregator = aggregator("nt:file;*");
+        assertThat(parents(aggregator, "/folder/file/jcr:content"), is(list("/folder/file")));
+        assertThat(parents(aggregator, "/folder/file/other"), is(list("/folder/file")));
+    }
+
+    @Test
+    public void depthAggregatesDescendantsOfTheIncludes() {
+        assertThat(parents(aggregator("nt:folder;a"), "/folder/a/b"), is(list()));
+        final ConfigurableNodeAggregator aggregator = aggregator("nt:folder;a;depth=2");
+        assertThat(parents(aggregator, "/folder/a"), is(list("/folder")));
+        assertThat(parents(aggregator, "/folder/a/b"), is(list("/folder")));
+        assertThat(parents(aggregator, "/folder/a/b/c"), is(list()));
+    }
+
+    @Test
+    public void aggregatingNodesAreAggregatedInTurn() {
+        final ConfigurableNodeAggregator aggregator = aggregator("nt:file;jcr:content", "nt:folder;*");
+        assertThat(parents(aggregator, "/folder/file/jcr:content"), is(list("/folder/file", "/folder")));
+    }
+
+    @Test
+    public void nodeTypeMatchesMixins() {
+        assertThat(parents(aggregator("mix:title;*"), "/titled/child"), is(list("/titled")));
+    }
+
+    @Test
+    public void invalidRulesAreIgnored() {
+        final ConfigurableNodeAggregator aggregator = aggregator(
+                "nt:file",
+                "nt:file;",
+                ";jcr:content",
+                "nt:file;../other",
+                "nt:file;./other",
+                "nt:file;other;depth=0",
+                "nt:file;other;depth=x",
+                "nt:file;other;size=1",
+                "nt:file;jcr:content");
+        assertThat(parents(aggregator, "/folder/file/jcr:content"), is(list("/folder/file")));
+        assertThat(parents(aggregator, "/folder/file/other"), is(list()));
+    }
+
+    private static ConfigurableNodeAggregator aggregator(final String... rules) {
+        return new ConfigurableNodeAggregator(rules);
+    }
+
+    private List<String> parents(final ConfigurableNodeAggregator aggregator, final String path) {
+        final List<String> parents = new ArrayList<>();
+        aggregator.getParents(root, path).forEachRemaining(parents::add);
+        return parents;
+    }
+
+    private static List<String> list(final String... values) {
+        return Arrays.asList(values);
+    }
+
+    private static NodeBuilder addNode(final NodeBuilder root, final String path, final String type) {
+        NodeBuilder node = root;
+        for (String name : PathUtils.elements(path)) {
+            node = node.child(name);
+        }
+        return node.setProperty(JcrConstants.JCR_PRIMARYTYPE, type, Type.NAME);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jackrabbit.oak.spi.lifecycle.RepositoryInitializer;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class InitializerRunnerTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void independentInitializersRunConcurrentlyOnce() {
+        final AddNode a = new AddNode("a");
+        final AddNode b = new AddNode("b");
+        final NodeBuilder root = EMPTY_NODE.builder();
+        runner(Collections.singleton(AddNode.class.getName()), a, b).initialize(root);
+        assertThat(root.hasChildNode("a"), is(true));
+        assertThat(root.hasChildNode("b"), is(true));
+        assertThat(a.runs.get(), is(1));
+        assertThat(b.runs.get(), is(1));
+    }
+
+    @Test
+    public void otherInitializersSeeTheContentOfThePrecedingOnes() {
+        final AddNode a = new AddNode("a");
+        final CopyNode copy = new CopyNode("a", "b");
+        final NodeBuilder root = EMPTY_NODE.builder();
+        runner(Collections.singleton(AddNode.class.getName()), a, copy).initialize(root);
+        assertThat(root.hasChildNode("b"), is(true));
+    }
+
+    @Test
+    public void conflictingIndependentInitializersAreNotRunAgain() {
+        final AddNode first = new AddNode("a");
+        final AddNode second = new AddNode("a");
+        try {
+            runner(Collections.singleton(AddNode.class.getName()), first, second).initialize(EMPTY_NODE.builder());
+            fail("conflicting initializers must fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertThat(first.runs.get(), is(1));
+        assertThat(second.runs.get(), is(1));
+    }
+
+    @Test
+    public void onlyInitializersWithUnchangedFingerprintAreSkipped() {
+        final AddNode fingerprinted = new AddNode("a");
+        final AddNode other = new AddNode("b");
+        final NodeBuilder root = EMPTY_NODE.builder();
+        runner(Collections.singletonMap(fingerprinted, "1"), fingerprinted, other).initialize(root);
+        runner(Collections.singletonMap(fingerprinted, "1"), fingerprinted, other).initialize(root);
+        assertThat(fingerprinted.runs.get(), is(1));
+        assertThat(other.runs.get(), is(2));
+
+        runner(Collections.singletonMap(fingerprinted, "2"), fingerprinted, other).initialize(root);
+        assertThat(fingerprinted.runs.get(), is(2));
+        assertThat(other.runs.get(), is(3));
+    }
+
+    private InitializerRunner runner(
+            final Map<RepositoryInitializer, String> fingerprints, final RepositoryInitializer... initializers) {
+        return new InitializerRunner(
+                Arrays.asList(initializers),
+                true,
+                fingerprints,
+                Collections.emptySet(),
+                executor,
+                new StartupReport(StatisticsProvider.NOOP));
+    }
+
+    private InitializerRunner runner(final Set<String> independent, final RepositoryInitializer... initializers) {
+        return new InitializerRunner(
+                Arrays.asList(initializers),
+                false,
+                Collections.emptyMap(),
+                independent,
+                executor,
+                new StartupReport(StatisticsProvider.NOOP));
+    }
+
+    private static final class AddNode implements RepositoryInitializer {
+
+        private final String name;
+
+        private final AtomicInteger runs = new AtomicInteger();
+
+        private AddNode(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void initialize(final NodeBuilder builder) {
+            runs.incrementAndGet();
+            builder.child(name).setProperty("value", name);
+        }
+    }
+
+    private static final class CopyNode implements RepositoryInitializer {
+
+        private final String source;
+
+        private final String target;
+
+        private CopyNode(final String source, final String target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        public void initialize(final NodeBuilder builder) {
+            if (builder.hasChildNode(source)) {
+                builder.setChildNode(target, builder.getChildNode(source).getNodeState());
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.nodetype.NodeTypeTemplate;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.plugins.index.IndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.IndexUpdateCallback;
+import org.apache.jackrabbit.oak.plugins.index.property.PropertyIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeStore;
+import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.stats.StatisticsProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.DECLARING_NODE_TYPES;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.PROPERTY_NAMES;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_PROPERTY_NAME;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ParallelReindexerTest {
+
+    private static final String INDEX = "foo";
+
+    private final MemoryNodeStore nodeStore = new MemoryNodeStore();
+
+    private Session session;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        final Repository repository = new Jcr(nodeStore).createRepository();
+        session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        session.getWorkspace().getNamespaceRegistry().registerNamespace("test", "http://sling.apache.org/test");
+        final NodeTypeManager nodeTypeManager = session.getWorkspace().getNodeTypeManager();
+        registerNodeType(nodeTypeManager, "test:base", false, JcrConstants.NT_UNSTRUCTURED);
+        registerNodeType(nodeTypeManager, "test:sub", false, "test:base");
+        registerNodeType(nodeTypeManager, "test:mixin", true);
+
+        final Node content = session.getRootNode().addNode("content");
+        addNode(content, "a/base", "test:base", null, "x");
+        addNode(content, "a/sub", "test:sub", null, "y");
+        addNode(content, "b/mixin", JcrConstants.NT_UNSTRUCTURED, "test:mixin", "x");
+        addNode(content, "b/other", JcrConstants.NT_UNSTRUCTURED, null, "y");
+        addNode(content, "c/d/e/sub", "test:sub", null, "z");
+        session.save();
+
+        // reindexed one node after the other when saved
+        final Node index = session.getNode("/" + INDEX_DEFINITIONS_NAME).addNode(INDEX, "oak:QueryIndexDefinition");
+        index.setProperty(TYPE_PROPERTY_NAME, PropertyIndexEditorProvider.TYPE);
+        index.setProperty(PROPERTY_NAMES, new String[] {"foo"}, PropertyType.NAME);
+        index.setProperty(DECLARING_NODE_TYPES, new String[] {"test:base", "test:mixin"}, PropertyType.NAME);
+        index.setProperty(REINDEX_PROPERTY_NAME, true);
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+    }
+
+    @Test
+    public void parallelReindexMatchesSerialReindexForTypedContent() throws Exception {
+        final Set<String> serial = getIndexedPaths();
+        assertThat(
+                serial,
+                hasItems("x:/content/a/base", "y:/content/a/sub", "x:/content/b/mixin", "z:/content/c/d/e/sub"));
+        assertThat(serial.size(), is(4));
+
+        final ParallelReindexer reindexer =
+                new ParallelReindexer(nodeStore, new PropertyIndexEditorProvider(), StatisticsProvider.NOOP);
+        try {
+            reindexer.startReindex(INDEX, 2);
+            while ("running".equals(reindexer.getStatus())) {
+                Thread.sleep(10);
+            }
+        } finally {
+            reindexer.close();
+        }
+        assertThat(reindexer.getStatus(), is("done"));
+        assertThat(getIndexedPaths(), is(serial));
+    }
+
+    @Test
+    public void changesCommittedDuringReindexAreCaughtUp() throws Exception {
+        final PausingEditorProvider provider = new PausingEditorProvider();
+        final ParallelReindexer reindexer = new ParallelReindexer(nodeStore, provider, StatisticsProvider.NOOP);
+        try {
+            reindexer.startReindex(INDEX, 2);
+            assertThat(provider.paused.await(10, TimeUnit.SECONDS), is(true));
+            // after the snapshot, before the merge
+            addNode(session.getNode("/content"), "b/added", "test:base", null, "x");
+            session.getNode("/content/a/base").setProperty("foo", "w");
+            session.getNode("/content/b/mixin").remove();
+            session.getNode("/content/c/d/e/sub").getProperty("foo").remove();
+            session.save();
+            provider.resumed.countDown();
+            while ("running".equals(reindexer.getStatus())) {
+                Thread.sleep(10);
+            }
+        } finally {
+            provider.resumed.countDown();
+            reindexer.close();
+        }
+        assertThat(reindexer.getStatus(), is("done"));
+        final Set<String> parallel = getIndexedPaths();
+        assertThat(parallel, hasItems("w:/content/a/base", "y:/content/a/sub", "x:/content/b/added"));
+        assertThat(parallel.size(), is(3));
+
+        session.getNode("/" + INDEX_DEFINITIONS_NAME + "/" + INDEX).setProperty(REINDEX_PROPERTY_NAME, true);
+        session.save();
+        assertThat(getIndexedPaths(), is(parallel));
+    }
+
+    private static void registerNodeType(
+            final NodeTypeManager nodeTypeManager, final String name, final boolean mixin, final String... supertypes)
+            throws RepositoryException {
+        final NodeTypeTemplate template = nodeTypeManager.createNodeTypeTemplate();
+        template.setName(name);
+        template.setMixin(mixin);
+        template.setDeclaredSuperTypeNames(supertypes);
+        nodeTypeManager.registerNodeType(template, false);
+    }
+
+    private static void addNode(
+            final Node parent, final String path, final String type, final String mixin, final String value)
+            throws RepositoryException {
+        Node node = parent;
+        for (String name : PathUtils.elements(PathUtils.getParentPath(path))) {
+            node = node.hasNode(name) ? node.getNode(name) : node.addNode(name, JcrConstants.NT_UNSTRUCTURED);
+        }
+        node = node.addNode(PathUtils.getName(path), type);
+        if (mixin != null) {
+            node.addMixin(mixin);
+        }
+        node.setProperty("foo", value);
+    }
+
+    /**
+     * Holds the first partition until the test committed its changes after the snapshot.
+     */
+    private static final class PausingEditorProvider implements IndexEditorProvider {
+
+        private final IndexEditorProvider provider = new PropertyIndexEditorProvider();
+
+        private final AtomicBoolean first = new AtomicBoolean(true);
+
+        private final CountDownLatch paused = new CountDownLatch(1);
+
+        private final CountDownLatch resumed = new CountDownLatch(1);
+
+        @Override
+        public Editor getIndexEditor(
+                final String type,
+                final NodeBuilder definition,
+                final NodeState root,
+                final IndexUpdateCallback callback)
+                throws CommitFailedException {
+            if (first.compareAndSet(true, false)) {
+                paused.countDown();
+                try {
+                    resumed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return provider.getIndexEditor(type, definition, root, callback);
+        }
+    }
+
+    /**
+     * Returns the indexed {@code value:path} pairs.
+     */
+    private Set<String> getIndexedPaths() {
+        final NodeState index = nodeStore.getRoot().getChildNode(INDEX_DEFINITIONS_NAME).getChildNode(INDEX);
+        final Set<String> paths = new TreeSet<>();
+        for (ChildNodeEntry value : index.getChildNode(":index").getChildNodeEntries()) {
+            collect(value.getNodeState(), value.getName() + ":", "/", paths);
+        }
+        return paths;
+    }
+
+    private static void collect(final NodeState node, final String prefix, final String path, final Set<String> paths) {
+        if (node.getBoolean("match")) {
+            paths.add(prefix + path);
+        }
+        for (ChildNodeEntry child : node.getChildNodeEntries()) {
+            collect(child.getNodeState(), prefix, PathUtils.concat(path, child.getName()), paths);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.oak.api.Result.SizePrecision;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.spi.query.Cursor;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
+import org.apache.jackrabbit.oak.stats.DefaultStatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class QueryDeadlineTest {
+
+    private ScheduledExecutorService executor;
+
+    private DefaultStatisticsProvider statisticsProvider;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        statisticsProvider = new DefaultStatisticsProvider(executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void boundCursorStopsOncePassedTheCurrentDeadline() throws InterruptedException {
+        final Cursor cursor = QueryDeadline.bound(cursor(3));
+        final QueryDeadline deadline = new QueryDeadline(1);
+        final QueryDeadline previous = deadline.enter();
+        try {
+            Thread.sleep(10);
+            cursor.hasNext();
+            fail("the cursor must stop after the deadline");
+        } catch (UnsupportedOperationException e) {
+            assertThat(QueryDeadline.isTimeout(new RuntimeException(e)), is(true));
+        } finally {
+            QueryDeadline.exit(previous);
+        }
+    }
+
+    @Test
+    public void boundCursorRunsWithoutDeadline() {
+        final Cursor cursor = QueryDeadline.bound(cursor(3));
+        int rows = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            rows++;
+        }
+        assertThat(rows, is(3));
+    }
+
+    @Test
+    public void exitRestoresThePreviousDeadline() throws InterruptedException {
+        final QueryDeadline outer = new QueryDeadline(1);
+        assertThat(outer.enter(), nullValue());
+        final QueryDeadline inner = new QueryDeadline(60000);
+        assertThat(inner.enter(), sameInstance(outer));
+        Thread.sleep(10);
+        // the inner deadline has not passed
+        QueryDeadline.bound(cursor(1)).hasNext();
+        QueryDeadline.exit(outer);
+        try {
+            QueryDeadline.bound(cursor(1)).hasNext();
+            fail("the outer deadline must be current again");
+        } catch (UnsupportedOperationException e) {
+            assertThat(QueryDeadline.isTimeout(e), is(true));
+        } finally {
+            QueryDeadline.exit(null);
+        }
+        QueryDeadline.bound(cursor(1)).hasNext();
+    }
+
+    @Test
+    public void queriesMayOnlyShortenTheDefaultTimeout() {
+        final QueryGuard guard = new QueryGuard(new String[0], 1000, statisticsProvider);
+        assertThat(guard.deadline(0).getTimeout(), is(1000L));
+        assertThat(guard.deadline(-1).getTimeout(), is(1000L));
+        assertThat(guard.deadline(100).getTimeout(), is(100L));
+        assertThat(guard.deadline(5000).getTimeout(), is(1000L));
+
+        final QueryGuard noDefault = new QueryGuard(new String[0], 0, statisticsProvider);
+        assertThat(noDefault.deadline(0), nullValue());
+        assertThat(noDefault.deadline(100).getTimeout(), is(100L));
+    }
+
+    @Test
+    public void timedOutQueryIsStoppedAndCounted() throws RepositoryException, InterruptedException {
+        final JackrabbitSession admin = (JackrabbitSession)
+                new Jcr().createRepository().login(new SimpleCredentials("admin", "admin".toCharArray()));
+        final QueryGuard guard = new QueryGuard(new String[0], 60000, statisticsProvider);
+        final Session session = new InstrumentedJackrabbitSession(admin, null, null, guard, "test", null, 0);
+        try {
+            final Node content = session.getRootNode().addNode("content", JcrConstants.NT_UNSTRUCTURED);
+            for (int i = 0; i < 3; i++) {
+                content.addNode("n" + i, JcrConstants.NT_UNSTRUCTURED);
+            }
+            session.save();
+
+            final Query query = session.getWorkspace()
+                    .getQueryManager()
+                    .createQuery(
+                            "select * from [nt:unstructured] as a where isdescendantnode(a, '/content')",
+                            Query.JCR_SQL2);
+            query.bindValue(InstrumentedQuery.TIMEOUT_BINDING, session.getValueFactory().createValue(50L));
+            final NodeIterator nodes = query.execute().getNodes();
+            nodes.nextNode();
+            Thread.sleep(100);
+            try {
+                nodes.nextNode();
+                fail("the query must stop after its timeout");
+            } catch (UnsupportedOperationException e) {
+                assertThat(QueryDeadline.isTimeout(e), is(true));
+            }
+            final long timedOut = statisticsProvider
+                    .getMeter(QueryGuard.TIMED_OUT_QUERIES, StatsOptions.DEFAULT)
+                    .getCount();
+            assertThat(timedOut, is(1L));
+        } finally {
+            session.logout();
+        }
+    }
+
+    private static Cursor cursor(final int rows) {
+        final Iterator<Integer> iterator = Arrays.asList(new Integer[rows]).iterator();
+        return new Cursor() {
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public IndexRow next() {
+                iterator.next();
+                return null;
+            }
+
+            @Override
+            public long getSize(final SizePrecision precision, final long max) {
+                return rows;
+            }
+        };
+    }
+}
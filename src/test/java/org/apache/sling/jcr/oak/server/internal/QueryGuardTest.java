@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.RowIterator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Matcher;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.spi.query.QueryLimits;
+import org.apache.jackrabbit.oak.stats.DefaultStatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class QueryGuardTest {
+
+    private static final long LIMIT_READS = 100;
+
+    /**
+     * Oak checks the read limit of traversals every 1000 nodes.
+     */
+    private static final int OTHER_NODES = 1100;
+
+    private ScheduledExecutorService executor;
+
+    private DefaultStatisticsProvider statisticsProvider;
+
+    private JackrabbitSession admin;
+
+    private Session session;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        statisticsProvider = new DefaultStatisticsProvider(executor);
+        admin = (JackrabbitSession) new Jcr()
+                .with(new QueryLimits() {
+
+                    @Override
+                    public long getLimitInMemory() {
+                        return Long.MAX_VALUE;
+                    }
+
+                    @Override
+                    public long getLimitReads() {
+                        return LIMIT_READS;
+                    }
+
+                    @Override
+                    public boolean getFullTextComparisonWithoutIndex() {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean getFailTraversal() {
+                        return true;
+                    }
+                })
+                .createRepository()
+                .login(new SimpleCredentials("admin", "admin".toCharArray()));
+        addNodes("content", 10);
+        addNodes("other", OTHER_NODES);
+        admin.save();
+        final QueryGuard guard = new QueryGuard(new String[] {"/content", "invalid"}, 0, statisticsProvider);
+        session = new InstrumentedJackrabbitSession(admin, null, null, guard, "test", null, 0);
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        executor.shutdown();
+    }
+
+    @Test
+    public void oakTraversalFailureIsRecognized() throws RepositoryException {
+        try {
+            admin.getWorkspace().getQueryManager().createQuery(query("/other"), Query.JCR_SQL2).execute();
+            fail("traversal queries must fail");
+        } catch (InvalidQueryException e) {
+            assertThat(QueryGuard.isTraversalRejected(e), is(true));
+        }
+    }
+
+    @Test
+    public void oakReadLimitFailureIsRecognized() throws RepositoryException {
+        final NodeIterator nodes = admin.getWorkspace()
+                .getQueryManager()
+                .createQuery(query("/other") + " option(traversal ok)", Query.JCR_SQL2)
+                .execute()
+                .getNodes();
+        try {
+            while (nodes.hasNext()) {
+                nodes.nextNode();
+            }
+            fail("reading more nodes than the limit must fail");
+        } catch (RuntimeException e) {
+            assertThat(QueryGuard.isLimitExceeded(e), is(true));
+        }
+    }
+
+    @Test
+    public void oakTraversalPlanIsRecognized() throws RepositoryException {
+        final RowIterator rows = admin.getWorkspace()
+                .getQueryManager()
+                .createQuery("explain " + query("/content") + " option(traversal ok)", Query.JCR_SQL2)
+                .execute()
+                .getRows();
+        final Matcher traversal = QueryGuard.TRAVERSAL.matcher(rows.nextRow().getValue("plan").getString());
+        assertThat(traversal.find(), is(true));
+        assertThat(traversal.group(1), is("/content//*"));
+    }
+
+    @Test
+    public void traversalBelowExemptPathIsRun() throws RepositoryException {
+        assertThat(execute(query("/content")), is(2));
+        assertThat(count(QueryGuard.TRAVERSAL_QUERIES), is(1L));
+        assertThat(count(QueryGuard.REJECTED_QUERIES), is(0L));
+    }
+
+    @Test
+    public void traversalOutsideExemptPathsIsRejected() throws RepositoryException {
+        try {
+            execute(query("/other"));
+            fail("traversal queries outside of the exempt paths must fail");
+        } catch (InvalidQueryException e) {
+            assertThat(count(QueryGuard.TRAVERSAL_QUERIES), is(1L));
+            assertThat(count(QueryGuard.REJECTED_QUERIES), is(1L));
+        }
+    }
+
+    @Test
+    public void traversalWithOptionsIsNotExempted() throws RepositoryException {
+        try {
+            execute(query("/content") + " option(limit 10)");
+            fail("traversal queries with options must fail");
+        } catch (InvalidQueryException e) {
+            assertThat(count(QueryGuard.REJECTED_QUERIES), is(1L));
+        }
+    }
+
+    @Test
+    public void readLimitFailureIsCountedOnce() throws RepositoryException {
+        final NodeIterator nodes = session.getWorkspace()
+                .getQueryManager()
+                .createQuery(query("/other") + " option(traversal ok)", Query.JCR_SQL2)
+                .execute()
+                .getNodes();
+        try {
+            while (nodes.hasNext()) {
+                nodes.nextNode();
+            }
+            fail("reading more nodes than the limit must fail");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            nodes.hasNext();
+        } catch (UnsupportedOperationException e) {
+            // Oak may fail again
+        }
+        assertThat(count(QueryGuard.REJECTED_QUERIES), is(1L));
+    }
+
+    private void addNodes(final String name, final int count) throws RepositoryException {
+        final Node node = admin.getRootNode().addNode(name, JcrConstants.NT_UNSTRUCTURED);
+        for (int i = 0; i < count; i++) {
+            node.addNode("n" + i, JcrConstants.NT_UNSTRUCTURED).setProperty("foo", i < 2 ? "x" : "y");
+        }
+    }
+
+    private static String query(final String path) {
+        return "select * from [nt:base] as a where a.[foo] = 'x' and isdescendantnode(a, '" + path + "')";
+    }
+
+    private int execute(final String statement) throws RepositoryException {
+        final List<String> paths = new ArrayList<>();
+        final NodeIterator nodes = session.getWorkspace()
+                .getQueryManager()
+                .createQuery(statement, Query.JCR_SQL2)
+                .execute()
+                .getNodes();
+        while (nodes.hasNext()) {
+            paths.add(nodes.nextNode().getPath());
+        }
+        return paths.size();
+    }
+
+    private long count(final String name) {
+        return statisticsProvider.getMeter(name, StatsOptions.DEFAULT).getCount();
+    }
+}
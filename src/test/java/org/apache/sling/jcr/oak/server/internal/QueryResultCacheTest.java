@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+import javax.jcr.query.RowIterator;
+import javax.jcr.security.Privilege;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.principal.PrincipalManager;
+import org.apache.jackrabbit.commons.jackrabbit.authorization.AccessControlUtils;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.stats.DefaultStatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class QueryResultCacheTest {
+
+    private static final String QUERY =
+            "select * from [nt:unstructured] as a where a.[foo] = 'x' and isdescendantnode(a, '/content')";
+
+    private static final String TYPE_QUERY = "select * from [nt:folder] as a where isdescendantnode(a, '/content')";
+
+    private ScheduledExecutorService executor;
+
+    private DefaultStatisticsProvider statisticsProvider;
+
+    private QueryResultCache cache;
+
+    private Repository repository;
+
+    private Session session;
+
+    private Node content;
+
+    private Node other;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        statisticsProvider = new DefaultStatisticsProvider(executor);
+        cache = new QueryResultCache(100, 100, 0, statisticsProvider);
+        repository = new Jcr().with(cache).createRepository();
+        session = login();
+        content = session.getRootNode().addNode("content", JcrConstants.NT_UNSTRUCTURED);
+        other = session.getRootNode().addNode("other", JcrConstants.NT_UNSTRUCTURED);
+        content.addNode("a", JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+        other.addNode("a", JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+        session.save();
+        session.refresh(true);
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        executor.shutdown();
+    }
+
+    @Test
+    public void repeatedQueryIsAnsweredFromTheCache() throws RepositoryException {
+        assertThat(query(QUERY), is(paths("/content/a")));
+        assertThat(query(QUERY), is(paths("/content/a")));
+        assertThat(count(QueryResultCache.MISSES), is(1L));
+        assertThat(count(QueryResultCache.HITS), is(1L));
+    }
+
+    @Test
+    public void changeOfQueriedPropertyInvalidates() throws RepositoryException {
+        query(QUERY);
+        content.addNode("b", JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+        session.save();
+        assertThat(query(QUERY), hasItems("/content/a", "/content/b"));
+        assertThat(count(QueryResultCache.INVALIDATIONS), is(1L));
+        assertThat(count(QueryResultCache.HITS), is(0L));
+    }
+
+    @Test
+    public void changeOfOtherPropertyKeepsResult() throws RepositoryException {
+        query(QUERY);
+        content.getNode("a").setProperty("bar", "y");
+        session.save();
+        assertThat(query(QUERY), is(paths("/content/a")));
+        assertThat(count(QueryResultCache.INVALIDATIONS), is(0L));
+        assertThat(count(QueryResultCache.HITS), is(1L));
+    }
+
+    @Test
+    public void changeOutsideQueriedPathKeepsResult() throws RepositoryException {
+        query(QUERY);
+        other.addNode("b", JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+        session.save();
+        assertThat(query(QUERY), is(paths("/content/a")));
+        assertThat(count(QueryResultCache.INVALIDATIONS), is(0L));
+        assertThat(count(QueryResultCache.HITS), is(1L));
+    }
+
+    @Test
+    public void nodeOfQueriedTypeInvalidates() throws RepositoryException {
+        assertThat(query(TYPE_QUERY), is(paths()));
+        content.addNode("c", JcrConstants.NT_UNSTRUCTURED);
+        session.save();
+        assertThat(query(TYPE_QUERY), is(paths()));
+        assertThat(count(QueryResultCache.HITS), is(1L));
+
+        content.addNode("folder", "nt:folder");
+        session.save();
+        assertThat(query(TYPE_QUERY), is(paths("/content/folder")));
+        assertThat(count(QueryResultCache.INVALIDATIONS), is(1L));
+        assertThat(count(QueryResultCache.HITS), is(1L));
+    }
+
+    @Test
+    public void accessControlChangeInvalidatesAll() throws RepositoryException {
+        query(QUERY);
+        query(TYPE_QUERY);
+        final PrincipalManager principalManager = ((JackrabbitSession) session).getPrincipalManager();
+        AccessControlUtils.addAccessControlEntry(
+                session, "/other", principalManager.getEveryone(), new String[] {Privilege.JCR_READ}, false);
+        session.save();
+        assertThat(count(QueryResultCache.INVALIDATIONS), is(2L));
+        query(QUERY);
+        assertThat(count(QueryResultCache.HITS), is(0L));
+    }
+
+    @Test
+    public void sessionWithPendingChangesBypassesTheCache() throws RepositoryException {
+        query(QUERY);
+        content.addNode("b", JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+        query(QUERY);
+        assertThat(count(QueryResultCache.HITS), is(0L));
+        assertThat(count(QueryResultCache.MISSES), is(1L));
+    }
+
+    @Test
+    public void changeOfRelativePropertyInvalidates() throws RepositoryException {
+        final String statement = "select * from [nt:unstructured] as a where a.[jcr:content/foo] = 'x' "
+                + "and isdescendantnode(a, '/content')";
+        content.getNode("a").addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+        session.save();
+        assertThat(query(statement), is(paths("/content/a")));
+        content.getNode("a/jcr:content").setProperty("foo", "y");
+        session.save();
+        assertThat(query(statement), is(paths()));
+        assertThat(count(QueryResultCache.HITS), is(0L));
+    }
+
+    @Test
+    public void changeOutsideNegatedPathInvalidates() throws RepositoryException {
+        final String statement =
+                "select * from [nt:unstructured] as a where a.[foo] = 'x' and not isdescendantnode(a, '/content')";
+        assertThat(query(statement), is(paths("/other/a")));
+        other.addNode("b", JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+        session.save();
+        assertThat(query(statement), hasItems("/other/a", "/other/b"));
+        assertThat(count(QueryResultCache.HITS), is(0L));
+    }
+
+    @Test
+    public void changeOutsidePathOfJoinedSelectorInvalidates() throws RepositoryException {
+        final String statement = "select a.* from [nt:unstructured] as a inner join [nt:unstructured] as b "
+                + "on a.[foo] = b.[foo] where isdescendantnode(b, '/content')";
+        assertThat(paths(statement, "a"), hasItems("/content/a", "/other/a"));
+        other.addNode("b", JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+        session.save();
+        assertThat(paths(statement, "a"), hasItems("/content/a", "/other/a", "/other/b"));
+        assertThat(count(QueryResultCache.HITS), is(0L));
+    }
+
+    @Test
+    public void sessionIsNotMovedToLaterResults() throws Exception {
+        final Session other = login();
+        final Thread writer = new Thread(() -> {
+            try {
+                other.getNode("/content").addNode("b", JcrConstants.NT_UNSTRUCTURED).setProperty("foo", "x");
+                other.save();
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+        writer.join();
+        final Session later = login();
+        try {
+            assertThat(query(later, QUERY), hasItems("/content/a", "/content/b"));
+            assertThat(query(QUERY), is(paths("/content/a")));
+            assertThat(count(QueryResultCache.HITS), is(0L));
+
+            session.refresh(false);
+            assertThat(query(QUERY), hasItems("/content/a", "/content/b"));
+            assertThat(count(QueryResultCache.HITS), is(1L));
+        } finally {
+            later.logout();
+            other.logout();
+        }
+    }
+
+    private Session login() throws RepositoryException {
+        final long revision = cache.getRevision();
+        final JackrabbitSession admin =
+                (JackrabbitSession) repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        return new InstrumentedJackrabbitSession(admin, null, cache, null, "test", null, revision);
+    }
+
+    private List<String> query(final String statement) throws RepositoryException {
+        return query(session, statement);
+    }
+
+    private static List<String> query(final Session session, final String statement) throws RepositoryException {
+        final Query query = session.getWorkspace().getQueryManager().createQuery(statement, Query.JCR_SQL2);
+        final List<String> paths = new ArrayList<>();
+        for (NodeIterator nodes = query.execute().getNodes(); nodes.hasNext(); ) {
+            paths.add(nodes.nextNode().getPath());
+        }
+        return paths;
+    }
+
+    private List<String> paths(final String statement, final String selector) throws RepositoryException {
+        final Query query = session.getWorkspace().getQueryManager().createQuery(statement, Query.JCR_SQL2);
+        final List<String> paths = new ArrayList<>();
+        for (RowIterator rows = query.execute().getRows(); rows.hasNext(); ) {
+            paths.add(rows.nextRow().getPath(selector));
+        }
+        return paths;
+    }
+
+    private static List<String> paths(final String... paths) {
+        final List<String> list = new ArrayList<>();
+        for (String path : paths) {
+            list.add(path);
+        }
+        return list;
+    }
+
+    private long count(final String name) {
+        return statisticsProvider.getMeter(name, StatsOptions.DEFAULT).getCount();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.stats.DefaultStatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class QueryStatisticsTest {
+
+    private static final String QUERY = "select * from [nt:unstructured] as a where isdescendantnode(a, '/content')";
+
+    private ScheduledExecutorService executor;
+
+    private DefaultStatisticsProvider statisticsProvider;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        statisticsProvider = new DefaultStatisticsProvider(executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void executionsAreAggregatedPerStatementAndBundle() {
+        final QueryStatistics statistics = new QueryStatistics(0, 100, statisticsProvider);
+        statistics.record("a", Query.JCR_SQL2, QUERY, millis(2), 3, QueryStatisticsTest::noPlan);
+        statistics.record("a", Query.JCR_SQL2, QUERY, millis(4), 5, QueryStatisticsTest::noPlan);
+        statistics.record("b", Query.JCR_SQL2, QUERY, millis(1), 1, QueryStatisticsTest::noPlan);
+
+        final CompositeData a = getStatement(statistics, "a");
+        assertThat(a.get("executionCount"), is(2L));
+        assertThat(a.get("totalMillis"), is(6L));
+        assertThat(a.get("maxMillis"), is(4L));
+        assertThat(a.get("totalRows"), is(8L));
+        assertThat(a.get("maxRows"), is(5L));
+        assertThat(a.get("lastSlowPlan"), is(""));
+        assertThat(getStatement(statistics, "b").get("executionCount"), is(1L));
+        assertThat(count(QueryStatistics.SLOW_QUERIES), is(0L));
+    }
+
+    @Test
+    public void slowQueriesAreCountedWithTheirPlan() {
+        final QueryStatistics statistics = new QueryStatistics(10, 100, statisticsProvider);
+        statistics.record("a", Query.JCR_SQL2, QUERY, millis(5), 1, QueryStatisticsTest::noPlan);
+        assertThat(count(QueryStatistics.SLOW_QUERIES), is(0L));
+
+        statistics.record("a", Query.JCR_SQL2, QUERY, millis(10), 1, () -> "the plan");
+        assertThat(count(QueryStatistics.SLOW_QUERIES), is(1L));
+        assertThat(getStatement(statistics, "a").get("lastSlowPlan"), is("the plan"));
+    }
+
+    @Test
+    public void statementsBeyondTheLimitAreNotKept() {
+        final QueryStatistics statistics = new QueryStatistics(1, 1, statisticsProvider);
+        statistics.record("a", Query.JCR_SQL2, QUERY, millis(1), 1, () -> "plan a");
+        statistics.record("b", Query.JCR_SQL2, QUERY, millis(1), 1, () -> "plan b");
+        assertThat(statistics.getStatements().size(), is(1));
+        assertThat(count(QueryStatistics.SLOW_QUERIES), is(2L));
+
+        statistics.reset();
+        assertThat(statistics.getStatements().isEmpty(), is(true));
+    }
+
+    @Test
+    public void queriesOfInstrumentedSessionsAreRecordedWhenIterated() throws RepositoryException {
+        final QueryStatistics statistics = new QueryStatistics(0, 100, statisticsProvider);
+        final Repository repository = new Jcr().createRepository();
+        final JackrabbitSession admin =
+                (JackrabbitSession) repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        final Session session = new InstrumentedJackrabbitSession(admin, statistics, null, null, "test", null, 0);
+        try {
+            final Node content = session.getRootNode().addNode("content", JcrConstants.NT_UNSTRUCTURED);
+            content.addNode("a", JcrConstants.NT_UNSTRUCTURED);
+            content.addNode("b", JcrConstants.NT_UNSTRUCTURED);
+            session.save();
+
+            final NodeIterator nodes = session.getWorkspace()
+                    .getQueryManager()
+                    .createQuery(QUERY, Query.JCR_SQL2)
+                    .execute()
+                    .getNodes();
+            assertThat(statistics.getStatements().isEmpty(), is(true));
+            while (nodes.hasNext()) {
+                nodes.nextNode();
+            }
+            final CompositeData statement = getStatement(statistics, "test");
+            assertThat(statement.get("executionCount"), is(1L));
+            assertThat(statement.get("totalRows"), is(2L));
+        } finally {
+            session.logout();
+        }
+    }
+
+    private static CompositeData getStatement(final QueryStatistics statistics, final String bundle) {
+        final TabularData statements = statistics.getStatements();
+        return statements.get(new Object[] {bundle, Query.JCR_SQL2, QUERY});
+    }
+
+    private static long millis(final long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static String noPlan() {
+        fail("only slow queries are explained");
+        return null;
+    }
+
+    private long count(final String name) {
+        return statisticsProvider.getMeter(name, StatsOptions.DEFAULT).getCount();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.observation.Event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.stats.DefaultStatisticsProvider;
+import org.apache.jackrabbit.oak.stats.StatsOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ServiceSessionPoolTest {
+
+    private static final List<String> PRINCIPALS = Collections.singletonList("service");
+
+    private static final List<String> OTHER_PRINCIPALS = Collections.singletonList("other-service");
+
+    private ScheduledExecutorService executor;
+
+    private DefaultStatisticsProvider statisticsProvider;
+
+    private Repository repository;
+
+    private final List<JackrabbitSession> created = Collections.synchronizedList(new ArrayList<>());
+
+    private ServiceSessionPool pool;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        statisticsProvider = new DefaultStatisticsProvider(executor);
+        repository = new Jcr().createRepository();
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+        for (JackrabbitSession session : created) {
+            if (session.isLive()) {
+                session.logout();
+            }
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void releasedSessionIsReused() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 10, 60, statisticsProvider);
+        final Session first = acquire(PRINCIPALS);
+        final JackrabbitSession wrapped = unwrap(first);
+        first.logout();
+        assertThat(first.isLive(), is(false));
+        final Session second = acquire(PRINCIPALS);
+        assertThat(unwrap(second), sameInstance(wrapped));
+        assertThat(count(ServiceSessionPool.HIT), is(1L));
+        assertThat(count(ServiceSessionPool.MISS), is(1L));
+    }
+
+    @Test
+    public void sessionsAreNotSharedAcrossPrincipals() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 10, 60, statisticsProvider);
+        final Session first = acquire(PRINCIPALS);
+        final JackrabbitSession wrapped = unwrap(first);
+        first.logout();
+        assertThat(unwrap(acquire(OTHER_PRINCIPALS)), not(sameInstance(wrapped)));
+        assertThat(count(ServiceSessionPool.HIT), is(0L));
+    }
+
+    @Test
+    public void reusedSessionSeesLatestState() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 10, 60, statisticsProvider);
+        final Session first = acquire(PRINCIPALS);
+        assertThat(first.nodeExists("/content"), is(false));
+        first.logout();
+
+        final Session writer = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        writer.getRootNode().addNode("content", JcrConstants.NT_UNSTRUCTURED);
+        writer.save();
+        writer.logout();
+
+        assertThat(acquire(PRINCIPALS).nodeExists("/content"), is(true));
+        assertThat(count(ServiceSessionPool.HIT), is(1L));
+    }
+
+    @Test
+    public void itemsOfPreviousBorrowerActOnTheNextOne() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 10, 60, statisticsProvider);
+        final Session first = acquire(PRINCIPALS);
+        final Node root = first.getRootNode();
+        first.logout();
+        final Session second = acquire(PRINCIPALS);
+        assertThat(root.getSession(), sameInstance(unwrap(second)));
+
+        root.addNode("stale", JcrConstants.NT_UNSTRUCTURED);
+        assertThat(second.hasPendingChanges(), is(true));
+        assertThat(second.nodeExists("/stale"), is(true));
+    }
+
+    @Test
+    public void sessionWithPendingChangesIsNotReused() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 10, 60, statisticsProvider);
+        final Session session = acquire(PRINCIPALS);
+        final JackrabbitSession wrapped = unwrap(session);
+        session.getRootNode().addNode("pending", JcrConstants.NT_UNSTRUCTURED);
+        session.logout();
+        assertThat(wrapped.isLive(), is(false));
+        assertNotReused(wrapped);
+    }
+
+    @Test
+    public void sessionWithRemappedNamespaceIsNotReused() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 10, 60, statisticsProvider);
+        final Session session = acquire(PRINCIPALS);
+        final JackrabbitSession wrapped = unwrap(session);
+        session.setNamespacePrefix("content", "http://www.jcp.org/jcr/1.0");
+        session.logout();
+        assertThat(wrapped.isLive(), is(false));
+        assertNotReused(wrapped);
+    }
+
+    @Test
+    public void sessionWithRemappedNamespaceThroughItsNodesIsNotReused() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 10, 60, statisticsProvider);
+        final Session session = acquire(PRINCIPALS);
+        final JackrabbitSession wrapped = unwrap(session);
+        session.getRootNode().getSession().setNamespacePrefix("content", "http://www.jcp.org/jcr/1.0");
+        session.logout();
+        assertThat(wrapped.isLive(), is(false));
+        assertNotReused(wrapped);
+    }
+
+    @Test
+    public void sessionWithEventListenerIsNotReused() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 10, 60, statisticsProvider);
+        final Session session = acquire(PRINCIPALS);
+        final JackrabbitSession wrapped = unwrap(session);
+        session.getWorkspace()
+                .getObservationManager()
+                .addEventListener(events -> {}, Event.NODE_ADDED, "/", true, null, null, false);
+        session.logout();
+        assertThat(wrapped.isLive(), is(false));
+        assertNotReused(wrapped);
+    }
+
+    @Test
+    public void expiredSessionsAreEvicted() throws Exception {
+        pool = new ServiceSessionPool(10, 10, 0, statisticsProvider);
+        final Session session = acquire(PRINCIPALS);
+        final JackrabbitSession wrapped = unwrap(session);
+        session.logout();
+        Thread.sleep(1);
+        assertNotReused(wrapped);
+        assertThat(wrapped.isLive(), is(false));
+        assertThat(count(ServiceSessionPool.EVICTION), is(1L));
+    }
+
+    @Test
+    public void poolIsBoundedPerKey() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 1, 60, statisticsProvider);
+        final Session first = acquire(PRINCIPALS);
+        final Session second = acquire(PRINCIPALS);
+        final JackrabbitSession secondWrapped = unwrap(second);
+        first.logout();
+        second.logout();
+        assertThat(secondWrapped.isLive(), is(false));
+        acquire(OTHER_PRINCIPALS).logout();
+        assertThat(liveSessions(), is(2));
+    }
+
+    @Test
+    public void poolIsBoundedUnderConcurrentRelease() throws Exception {
+        final int threads = 16;
+        pool = new ServiceSessionPool(4, threads, 60, statisticsProvider);
+        final List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            sessions.add(acquire(PRINCIPALS));
+        }
+        final ExecutorService releasing = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (Session session : sessions) {
+                futures.add(releasing.submit(() -> {
+                    start.await();
+                    session.logout();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            releasing.shutdown();
+        }
+        assertThat(liveSessions(), is(4));
+    }
+
+    @Test
+    public void closeLogsOutIdleSessions() throws RepositoryException {
+        pool = new ServiceSessionPool(10, 10, 60, statisticsProvider);
+        final Session session = acquire(PRINCIPALS);
+        final JackrabbitSession wrapped = unwrap(session);
+        session.logout();
+        assertThat(wrapped.isLive(), is(true));
+        pool.close();
+        assertThat(wrapped.isLive(), is(false));
+    }
+
+    private void assertNotReused(final JackrabbitSession previous) throws RepositoryException {
+        final long hits = count(ServiceSessionPool.HIT);
+        assertThat(unwrap(acquire(PRINCIPALS)), not(sameInstance(previous)));
+        assertThat(count(ServiceSessionPool.HIT), is(hits));
+    }
+
+    private Session acquire(final List<String> principals) throws RepositoryException {
+        return pool.acquire(principals, null, 0, () -> {
+            final JackrabbitSession session = (JackrabbitSession)
+                    repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+            created.add(session);
+            return session;
+        });
+    }
+
+    private static JackrabbitSession unwrap(final Session session) {
+        return ((PooledJackrabbitSession) session).getWrapped();
+    }
+
+    private int liveSessions() {
+        int live = 0;
+        for (JackrabbitSession session : created) {
+            if (session.isLive()) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    private long count(final String name) {
+        return statisticsProvider.getMeter(name, StatsOptions.DEFAULT).getCount();
+    }
+}
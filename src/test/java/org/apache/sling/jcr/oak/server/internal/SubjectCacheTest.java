@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.oak.server.internal;
+
+import javax.security.auth.Subject;
+
+import java.util.Arrays;
+
+import org.apache.jackrabbit.oak.api.AuthInfo;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SubjectCacheTest {
+
+    @Test
+    public void administrativeSubjectsAreCachedPerAdminId() {
+        final SubjectCache cache = new SubjectCache(10);
+        final Subject admin = cache.getAdministrativeSubject("admin");
+        assertThat(cache.getAdministrativeSubject("admin"), sameInstance(admin));
+        final Subject other = cache.getAdministrativeSubject("other-admin");
+        assertThat(other, not(sameInstance(admin)));
+        assertThat(getUserId(admin), is("admin"));
+        assertThat(getUserId(other), is("other-admin"));
+    }
+
+    @Test
+    public void serviceSubjectsAreCachedPerPrincipalNames() {
+        final SubjectCache cache = new SubjectCache(10);
+        final Subject subject = cache.getServiceSubject(Arrays.asList("a", "b"));
+        assertThat(cache.getServiceSubject(Arrays.asList("a", "b")), sameInstance(subject));
+        assertThat(cache.getServiceSubject(Arrays.asList("b", "a")), not(sameInstance(subject)));
+        assertThat(getUserId(subject), is("a"));
+        cache.clear();
+        assertThat(cache.getServiceSubject(Arrays.asList("a", "b")), not(sameInstance(subject)));
+    }
+
+    private static String getUserId(final Subject subject) {
+        return subject.getPublicCredentials(AuthInfo.class).iterator().next().getUserID();
+    }
+}